@@ -0,0 +1,111 @@
+package edu.virginia.cs.shellac.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.virginia.cs.shellac.annotations.Checks;
+import edu.virginia.cs.shellac.annotations.ReqVar;
+import edu.virginia.cs.shellac.annotations.Satisfies;
+import edu.virginia.cs.shellac.examples.HistoryCheck;
+
+/**
+ * HistoryCheck.processNext, and copies of it with longer histories.
+ *
+ * The history length is part of the ReqVar annotation, so it can't be a
+ * JMH parameter; instead there is a copy of processNext for each length.
+ * Their checkers read the whole history but, unlike the example's, don't
+ * print it.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryBenchmark {
+
+	private HistoryCheck example;
+	private History5 history5;
+	private History64 history64;
+	private History1024 history1024;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		example = new HistoryCheck();
+		history5 = new History5();
+		history64 = new History64();
+		history1024 = new History1024();
+	}
+
+	@Benchmark
+	public void processNext() {
+		example.processNext(next++ & 3);
+	}
+
+	@Benchmark
+	public void processNextHistory5() {
+		history5.processNext(next++ & 3);
+	}
+
+	@Benchmark
+	public void processNextHistory64() {
+		history64.processNext(next++ & 3);
+	}
+
+	@Benchmark
+	public void processNextHistory1024() {
+		history1024.processNext(next++ & 3);
+	}
+
+	public static class History5 {
+		@Satisfies("benchHistory5")
+		public void processNext(@ReqVar(value = "benchNum5", history = 5) int num) {
+		}
+
+		@Checks("benchHistory5")
+		public void checkProcess(@ReqVar("benchNum5[]") int[] num) throws Exception {
+			checkBounded(num);
+		}
+	}
+
+	public static class History64 {
+		@Satisfies("benchHistory64")
+		public void processNext(@ReqVar(value = "benchNum64", history = 64) int num) {
+		}
+
+		@Checks("benchHistory64")
+		public void checkProcess(@ReqVar("benchNum64[]") int[] num) throws Exception {
+			checkBounded(num);
+		}
+	}
+
+	public static class History1024 {
+		@Satisfies("benchHistory1024")
+		public void processNext(@ReqVar(value = "benchNum1024", history = 1024) int num) {
+		}
+
+		@Checks("benchHistory1024")
+		public void checkProcess(@ReqVar("benchNum1024[]") int[] num) throws Exception {
+			checkBounded(num);
+		}
+	}
+
+	static void checkBounded(int[] num) throws Exception {
+		for (int i = 0; i < num.length; i++) {
+			if (num[i] < 0 || num[i] > 3) {
+				throw new Exception("history value " + num[i] + " out of range");
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package edu.virginia.cs.shellac.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.virginia.cs.shellac.examples.InstanceVars;
+
+/**
+ * InstanceVars.setValue, whose isInstance variable is read before and after
+ * every call. The value always goes up by one, so the check passes.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstanceVarsBenchmark {
+
+	private InstanceVars instanceVars;
+
+	@Setup
+	public void setUp() {
+		instanceVars = new InstanceVars();
+	}
+
+	@Benchmark
+	public int setValue() {
+		instanceVars.setValue(instanceVars.getValue() + 1);
+		return instanceVars.getValue();
+	}
+}
@@ -0,0 +1,22 @@
+package edu.virginia.cs.shellac.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with JMH, adding the GC profiler so that the
+ * allocation rate per operation is reported along with the times, unless
+ * another profiler was asked for. Any other JMH options can be given too.
+ */
+public class ShellBenchmarks {
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!options.contains("-prof") && !options.contains("-l") && !options.contains("-h")) {
+			options.add("-prof");
+			options.add("gc");
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+	}
+}
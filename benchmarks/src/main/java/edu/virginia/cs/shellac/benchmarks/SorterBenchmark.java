@@ -0,0 +1,64 @@
+package edu.virginia.cs.shellac.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.virginia.cs.shellac.examples.Sorter;
+
+/**
+ * Sorter.swap, which copies its isOutput array on every call, and
+ * Sorter.sort, which makes a checked call to swap for every exchange.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SorterBenchmark {
+
+	@Param({ "16", "256" })
+	int size;
+
+	private Sorter sorter;
+	private int[] input;
+	private int[] array;
+	private int position;
+
+	@Setup
+	public void setUp() {
+		sorter = new Sorter();
+		Random random = new Random(42);
+		input = new int[size];
+		for (int i = 0; i < size; i++) {
+			input[i] = random.nextInt();
+		}
+		array = input.clone();
+	}
+
+	@Benchmark
+	public int[] swap() {
+		int i = position;
+		int j = (i + size / 2) % size;
+		position = (i + 1) % size;
+		sorter.swap(array, i, j);
+		return array;
+	}
+
+	@Benchmark
+	public int[] sort() {
+		return sorter.sort(input);
+	}
+}
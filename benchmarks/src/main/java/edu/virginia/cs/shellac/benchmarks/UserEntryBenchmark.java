@@ -0,0 +1,61 @@
+package edu.virginia.cs.shellac.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.virginia.cs.tokeneer.StatusT;
+import edu.virginia.cs.tokeneer.UserEntry;
+import edu.virginia.cs.tokeneer.UserToken;
+
+/**
+ * One round trip of the tokeneer UserEntry state machine: a token is
+ * inserted and the entry started, the token fails to validate, and the
+ * token is removed, which returns to Quiescent. Each of these goes through
+ * several checked status transitions.
+ *
+ * The tokeneer classes are singletons, so this can only be run on one
+ * thread.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserEntryBenchmark {
+
+	private UserEntry userEntry;
+	private UserToken userToken;
+
+	@Setup
+	public void setUp() {
+		userToken = UserToken.instance();
+		userToken.clear();
+		userEntry = new UserEntry();
+	}
+
+	@Benchmark
+	public StatusT transitions() {
+		// Quiescent -> GotUserToken
+		userToken.setPresent(true);
+		userEntry.startEntry();
+
+		// GotUserToken -> WaitingRemoveTokenFail, since the token can't be read
+		userEntry.progress();
+
+		// WaitingRemoveTokenFail -> Quiescent
+		userToken.setPresent(false);
+		userEntry.progress();
+		return userEntry.getStatus();
+	}
+}
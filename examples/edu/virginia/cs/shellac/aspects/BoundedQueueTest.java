@@ -0,0 +1,105 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.TestCase;
+
+public class BoundedQueueTest extends TestCase {
+
+	public void testOfferFailsWhenFull() {
+		// rounded up to 4
+		BoundedQueue<Integer> queue = new BoundedQueue<Integer>(3);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(4));
+		assertEquals(4, queue.size());
+
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertTrue(queue.offer(4));
+		assertFalse(queue.offer(5));
+	}
+
+	public void testPollsInOrderUntilEmpty() {
+		BoundedQueue<Integer> queue = new BoundedQueue<Integer>(4);
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+
+		// go round the ring several times
+		int next = 0;
+		for (int lap = 0; lap < 10; lap++) {
+			for (int i = 0; i < 3; i++) {
+				assertTrue(queue.offer(lap * 3 + i));
+			}
+			for (int i = 0; i < 3; i++) {
+				assertEquals(Integer.valueOf(next++), queue.poll());
+			}
+			assertNull(queue.poll());
+		}
+	}
+
+	public void testEachValueIsPolledOnce() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 20000;
+		final BoundedQueue<Integer> queue = new BoundedQueue<Integer>(64);
+		final AtomicIntegerArray seen = new AtomicIntegerArray(producers * perProducer);
+
+		Thread[] threads = new Thread[producers + 2];
+		for (int p = 0; p < producers; p++) {
+			final int first = p * perProducer;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = first; i < first + perProducer; i++) {
+						while (!queue.offer(i)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+		}
+		final int[] polled = new int[2];
+		for (int c = 0; c < 2; c++) {
+			final int consumer = c;
+			threads[producers + c] = new Thread() {
+				@Override
+				public void run() {
+					long giveUp = System.currentTimeMillis() + 30000;
+					while (sum(polled) < seen.length() && System.currentTimeMillis() < giveUp) {
+						Integer value = queue.poll();
+						if (value == null) {
+							Thread.yield();
+						} else {
+							seen.incrementAndGet(value.intValue());
+							synchronized (polled) {
+								polled[consumer]++;
+							}
+						}
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(seen.length(), sum(polled));
+		for (int i = 0; i < seen.length(); i++) {
+			assertEquals("times " + i + " was polled", 1, seen.get(i));
+		}
+		assertNull(queue.poll());
+	}
+
+	private static int sum(int[] counts) {
+		synchronized (counts) {
+			int sum = 0;
+			for (int count : counts) {
+				sum += count;
+			}
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package edu.virginia.cs.shellac.aspects;
+
+import junit.framework.TestCase;
+
+public class ChunkedSnapshotTest extends TestCase {
+
+	private int[] array;
+	private int chunkSize;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		chunkSize = ChunkedSnapshot.begin(new int[1], new int[0]).getChunkSize();
+		array = new int[chunkSize * 4 + 10];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = i;
+		}
+	}
+
+	public void testOnlyTouchedChunksAreCopied() {
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(array, new int[] { 1, chunkSize * 2 + 5 });
+		assertEquals(5, snapshot.getChunkCount());
+		assertTrue(snapshot.isCopied(0));
+		assertTrue(snapshot.isCopied(chunkSize - 1));
+		assertFalse(snapshot.isCopied(chunkSize));
+		assertTrue(snapshot.isCopied(chunkSize * 2));
+		assertFalse(snapshot.isCopied(array.length - 1));
+		assertFalse(snapshot.isCopied(-1));
+	}
+
+	public void testTouchedChangesAreSeen() {
+		int far = chunkSize * 2 + 5;
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(array, new int[] { 1, far });
+		// a swap, and a change next to one of the touched indices
+		array[1] = far;
+		array[far] = 1;
+		array[far + 1] = -1;
+		snapshot.end(array);
+
+		assertTrue(snapshot.isChunkChanged(0));
+		assertFalse(snapshot.isChunkChanged(1));
+		assertTrue(snapshot.isChunkChanged(2));
+		assertFalse(snapshot.isChunkChanged(3));
+		assertFalse(snapshot.isChunkChanged(4));
+		assertTrue(snapshot.isUnchangedExcept(1, far));
+		assertFalse(snapshot.isUnchangedExcept(1));
+
+		assertEquals(Integer.valueOf(1), snapshot.getOldValue(1));
+		assertEquals(Integer.valueOf(far), snapshot.getNewValue(1));
+		assertEquals(Integer.valueOf(far + 1), snapshot.getOldValue(far + 1));
+		assertEquals(Integer.valueOf(-1), snapshot.getNewValue(far + 1));
+	}
+
+	public void testChangesElsewhereAreSeenByHash() {
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(array, new int[] { 1 });
+		array[chunkSize * 3 + 7]++;
+		array[array.length - 1]++;
+		snapshot.end(array);
+
+		assertFalse(snapshot.isChunkChanged(0));
+		assertFalse(snapshot.isChunkChanged(1));
+		assertTrue(snapshot.isChunkChanged(3));
+		assertTrue(snapshot.isChunkChanged(4));
+		assertFalse(snapshot.isUnchangedExcept(1));
+		try {
+			snapshot.getOldValue(chunkSize * 3 + 7);
+			fail("the value was only hashed");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().indexOf("copied chunks") >= 0);
+		}
+	}
+
+	public void testUnchangedArray() {
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(array, new int[] { 0 });
+		snapshot.end(array);
+		for (int chunk = 0; chunk < snapshot.getChunkCount(); chunk++) {
+			assertFalse(snapshot.isChunkChanged(chunk));
+		}
+		assertTrue(snapshot.isUnchangedExcept());
+	}
+
+	public void testNaNThatStaysPutIsUnchanged() {
+		double[] doubles = new double[10000];
+		doubles[3] = Double.NaN;
+		doubles[9000] = Double.NaN;
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(doubles, new int[] { 3 });
+		// a different NaN, which the boxed values would still call equal
+		doubles[3] = Double.longBitsToDouble(0x7ff8000000000001L);
+		doubles[9000] = Double.longBitsToDouble(0x7ff8000000000001L);
+		snapshot.end(doubles);
+		assertTrue(snapshot.isUnchangedExcept());
+	}
+
+	public void testNegativeZeroIsAChange() {
+		float[] floats = new float[10000];
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(floats, new int[] { 3 });
+		floats[3] = -0.0f;
+		floats[9000] = -0.0f;
+		snapshot.end(floats);
+		assertTrue(snapshot.isChunkChanged(snapshot.chunkOf(3)));
+		assertTrue(snapshot.isChunkChanged(snapshot.chunkOf(9000)));
+	}
+
+	public void testObjectsAreComparedByIdentity() {
+		String[] strings = new String[10];
+		strings[2] = "value";
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(strings, new int[] { 2 });
+		strings[2] = new String("value");
+		snapshot.end(strings);
+		assertFalse(snapshot.isUnchangedExcept());
+		assertEquals(strings[2], snapshot.getOldValue(2));
+		assertNotSame(strings[2], snapshot.getOldValue(2));
+	}
+
+	public void testOtherPrimitiveTypes() {
+		short[] shorts = new short[5000];
+		ChunkedSnapshot snapshot = ChunkedSnapshot.begin(shorts, new int[0]);
+		shorts[shorts.length - 1] = 1;
+		snapshot.end(shorts);
+		assertOnlyLastChunkChanged(snapshot);
+
+		char[] chars = new char[5000];
+		snapshot = ChunkedSnapshot.begin(chars, new int[0]);
+		chars[chars.length - 1] = 'x';
+		snapshot.end(chars);
+		assertOnlyLastChunkChanged(snapshot);
+
+		byte[] bytes = new byte[10000];
+		snapshot = ChunkedSnapshot.begin(bytes, new int[0]);
+		bytes[bytes.length - 1] = 1;
+		snapshot.end(bytes);
+		assertOnlyLastChunkChanged(snapshot);
+
+		boolean[] booleans = new boolean[10000];
+		snapshot = ChunkedSnapshot.begin(booleans, new int[0]);
+		booleans[booleans.length - 1] = true;
+		snapshot.end(booleans);
+		assertOnlyLastChunkChanged(snapshot);
+
+		long[] longs = new long[1000];
+		snapshot = ChunkedSnapshot.begin(longs, new int[0]);
+		longs[longs.length - 1] = 1L << 40;
+		snapshot.end(longs);
+		assertOnlyLastChunkChanged(snapshot);
+	}
+
+	private static void assertOnlyLastChunkChanged(ChunkedSnapshot snapshot) {
+		int last = snapshot.getChunkCount() - 1;
+		assertTrue(last > 0);
+		for (int chunk = 0; chunk < last; chunk++) {
+			assertFalse(snapshot.isChunkChanged(chunk));
+		}
+		assertTrue(snapshot.isChunkChanged(last));
+	}
+}
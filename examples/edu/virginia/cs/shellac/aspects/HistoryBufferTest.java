@@ -0,0 +1,147 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class HistoryBufferTest extends TestCase {
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		file = File.createTempFile("shellac", ".history");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+
+		super.tearDown();
+	}
+
+	public void testRingWraps() {
+		HistoryBuffer buffer = HistoryBuffer.create(Integer.TYPE, 3);
+		for (int i = 0; i < 5; i++) {
+			buffer.append(i);
+		}
+		assertEquals(3, buffer.size());
+		assertTrue(Arrays.equals(new int[] { 4, 3, 2 }, (int[]) buffer.toArray()));
+		assertFalse(buffer.isAvailable(1));
+		assertTrue(buffer.isAvailable(2));
+		assertEquals(4, buffer.intAt(buffer.indexOfCount(4)));
+	}
+
+	public void testDirectHistoryWraps() {
+		HistoryBuffer buffer = HistoryBuffer.DirectHistory.allocate(Long.TYPE, 3);
+		for (long i = 0; i < 5; i++) {
+			buffer.append(i);
+		}
+		assertEquals(3, buffer.size());
+		assertTrue(Arrays.equals(new long[] { 4, 3, 2 }, (long[]) buffer.toArray()));
+		assertEquals(2L, buffer.longAt(buffer.indexOfCount(2)));
+		try {
+			buffer.intAt(0);
+			fail("longs aren't ints");
+		} catch (UnsupportedOperationException ex) {
+			assertEquals("The direct history of long values doesn't hold ints", ex.getMessage());
+		}
+	}
+
+	public void testMappedHistoryIsReloaded() throws IOException {
+		HistoryBuffer.DirectHistory buffer = HistoryBuffer.DirectHistory.map(Double.TYPE, 4, file);
+		assertTrue(buffer.isMapped());
+		assertEquals(0, buffer.size());
+		for (int i = 1; i <= 6; i++) {
+			buffer.append((double) i);
+		}
+		buffer.close();
+
+		buffer = HistoryBuffer.DirectHistory.map(Double.TYPE, 4, file);
+		try {
+			assertEquals(4, buffer.size());
+			assertEquals(6, buffer.appended);
+			assertTrue(Arrays.equals(new double[] { 6, 5, 4, 3 }, (double[]) buffer.toArray()));
+
+			// and carries on where it left off
+			buffer.append(7.0);
+			assertTrue(Arrays.equals(new double[] { 7, 6, 5, 4 }, (double[]) buffer.toArray()));
+		} finally {
+			buffer.close();
+		}
+	}
+
+	public void testMappedHistoryOfAnotherShapeStartsOver() throws IOException {
+		HistoryBuffer.DirectHistory buffer = HistoryBuffer.DirectHistory.map(Integer.TYPE, 4, file);
+		buffer.append(1);
+		buffer.close();
+
+		buffer = HistoryBuffer.DirectHistory.map(Integer.TYPE, 8, file);
+		assertEquals(0, buffer.size());
+		buffer.append(2);
+		buffer.close();
+
+		buffer = HistoryBuffer.DirectHistory.map(Float.TYPE, 8, file);
+		assertEquals(0, buffer.size());
+		buffer.close();
+	}
+
+	public void testMappedFileCanOnlyBeMappedOnce() throws IOException {
+		HistoryBuffer.DirectHistory buffer = HistoryBuffer.DirectHistory.map(Integer.TYPE, 4, file);
+		try {
+			HistoryBuffer.DirectHistory.map(Integer.TYPE, 4, file);
+			fail("the file is already mapped");
+		} catch (IOException ex) {
+			assertEquals(file + " is already mapped by another history", ex.getMessage());
+		} finally {
+			buffer.close();
+		}
+	}
+
+	public void testViewOfWrappedRing() {
+		HistoryBuffer buffer = HistoryBuffer.create(Integer.TYPE, 3);
+		buffer.append(0);
+		buffer.append(1);
+		HistoryView view = new HistoryView("v", Integer.TYPE, buffer, buffer.appended, buffer.size());
+		buffer.append(2);
+		buffer.append(3);
+
+		// the view still sees the values as of when it was made, until they are overwritten
+		assertEquals(2, view.size());
+		assertEquals(1, view.getInt(0));
+		assertTrue(view.isAvailable(0));
+		assertFalse(view.isAvailable(1));
+		try {
+			view.getInt(1);
+			fail("the value has been overwritten");
+		} catch (IllegalStateException ex) {
+			assertEquals("The value from 1 calls ago has been overwritten in the history of v, which only keeps 3 values",
+				ex.getMessage());
+		}
+	}
+
+	public void testDetachedView() {
+		HistoryBuffer buffer = HistoryBuffer.create(Integer.TYPE, 3);
+		for (int i = 0; i < 4; i++) {
+			buffer.append(i);
+		}
+		HistoryView view = new HistoryView("v", Integer.TYPE, buffer, buffer.appended, buffer.size());
+		buffer.append(4);
+
+		// one of the view's values has been overwritten, so it is left out
+		HistoryView detached = view.detach();
+		assertEquals(2, detached.size());
+		assertEquals(3, detached.getInt(0));
+		assertEquals(2L, detached.getLong(1));
+
+		// and the copy isn't changed by later values
+		buffer.append(5);
+		buffer.append(6);
+		assertEquals(3, detached.getInt(0));
+		assertEquals(2.0, detached.getDouble(1), 0);
+		assertEquals(Integer.valueOf(2), detached.get(1));
+	}
+}
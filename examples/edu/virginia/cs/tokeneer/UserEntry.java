@@ -150,7 +150,7 @@ public class UserEntry {
 		}
 	}
 	
-	@Satsifies({"r1o2"})
+	@Satisfies({"r1o2"})
 	private void unlockDoor() {
 		if (!userToken.isPresent()) {
 			door.unlockDoor();
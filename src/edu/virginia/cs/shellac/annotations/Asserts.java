@@ -8,9 +8,8 @@ import java.lang.annotation.Target;
 /**
  * This annotation is used to assert that a given method does indeed
  * satisfy the named requirements. This is useful if the requirements
- * have been proven.
- * 
- * TODO: This annotation is currently not used / read by the system.
+ * have been proven: the protection shells don't check the asserted
+ * requirements, even if the method also claims to satisfy them.
  * 
  * @author btaitelb
  *
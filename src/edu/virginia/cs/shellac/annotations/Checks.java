@@ -15,4 +15,15 @@ public @interface Checks {
 	 * @return the dynamic obligation to be checked by the annotated method
 	 */
 	String value();
+	
+	/**
+	 * Whether the method checks a batch of calls at once. Each parameter of a
+	 * batch checker is a List, holding the requirement variable's value from
+	 * each call in the order the calls were made. Calls are only batched when
+	 * their requirement is deferred to the end of an enclosing call (see
+	 * -Dshellac.defer); otherwise the lists only hold the one call.
+	 * 
+	 * @return true if the checker takes lists of values
+	 */
+	boolean batch() default false;
 }
@@ -47,6 +47,10 @@ public @interface ReqVar {
      * as "myValue_hist". The first element of the array is the most recent value.
      * Note that the array's length will be less than the value of history() until that
      * many calls have been made.
+     * 
+     * For long histories, the checker can declare the parameter as a
+     * {@link edu.virginia.cs.shellac.aspects.HistoryView} instead, which reads the
+     * values where they are kept rather than copying them into an array for every call.
      */
     int history() default 1;
     
@@ -61,4 +65,17 @@ public @interface ReqVar {
      * @return
      */
     boolean isInstance() default false;
+    
+    /**
+     * For an {@link #isOutput()} array, names the other ReqVars of the method
+     * that hold the indices it is meant to change. For example, a swap
+     * would be annotated with
+     * <code>@ReqVar(value="arr", isOutput=true, touches={"pos1", "pos2"})</code>
+     * 
+     * A checker that takes the array's output as a ChunkedSnapshot or an
+     * ArrayDelta can then see the old and new values at those indices, and
+     * whether anything else in the array changed, without the whole array
+     * being copied.
+     */
+    String[] touches() default {};
 }
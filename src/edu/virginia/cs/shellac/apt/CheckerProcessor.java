@@ -0,0 +1,350 @@
+package edu.virginia.cs.shellac.apt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import edu.virginia.cs.shellac.annotations.Checks;
+import edu.virginia.cs.shellac.annotations.ReqVar;
+import edu.virginia.cs.shellac.aspects.CheckerIndex;
+import edu.virginia.cs.shellac.aspects.CheckerInvokerFactory;
+import edu.virginia.cs.shellac.aspects.CheckerInvokers;
+
+/**
+ * Generates a {@link CheckerInvokerFactory} for each class with @Checks
+ * methods, so that the protection shells can call the checkers directly
+ * instead of through reflection.
+ *
+ * The factory for pkg.Foo is pkg.Foo$ShellacCheckers, and has an invoker
+ * for each checker that it can call from the same package: private
+ * checkers, and checkers that are in or take private or protected nested
+ * classes, are left to be called through reflection.
+ *
+ * It also lists every public checker in the {@link CheckerIndex#INDEX}
+ * resource, which is how the protection shells find checkers in classes
+ * other than the checked method's. Only public checkers are listed, since
+ * those are the only ones the shells find in the checked method's own
+ * class, so a checker is used or not whether or not the processor ran. The index is
+ * written once all the sources have been processed. An incremental build
+ * only processes the classes that changed, so the index from the earlier
+ * build is read back and its lines for the other classes kept.
+ *
+ * The processor is registered in META-INF/services, so it runs whenever the
+ * Shellac jar is on the processor path (the factory path, in Eclipse).
+ */
+@SupportedAnnotationTypes("edu.virginia.cs.shellac.annotations.Checks")
+public class CheckerProcessor extends AbstractProcessor {
+
+	// the lines of the checker index, kept sorted so the index is the same from one build to the next
+	private final Set<String> index = new TreeSet<String>();
+
+	// the binary names of the classes this build has processed, whose lines in an earlier index are out of date
+	private final Set<String> processed = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		// group the checkers by the class they are in
+		Map<TypeElement, List<ExecutableElement>> checkers = new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+		for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+			addProcessed(type);
+		}
+		for (ExecutableElement checker : ElementFilter.methodsIn(roundEnv.getElementsAnnotatedWith(Checks.class))) {
+			TypeElement type = (TypeElement) checker.getEnclosingElement();
+			if (checker.getModifiers().contains(Modifier.PUBLIC)) {
+				index.add(indexLine(type, checker));
+			}
+			if (!isAccessible(type) || !isCallable(checker)) {
+				continue;
+			}
+			List<ExecutableElement> methods = checkers.get(type);
+			if (methods == null) {
+				methods = new ArrayList<ExecutableElement>();
+				checkers.put(type, methods);
+			}
+			methods.add(checker);
+		}
+
+		for (Map.Entry<TypeElement, List<ExecutableElement>> entry : checkers.entrySet()) {
+			try {
+				generate(entry.getKey(), entry.getValue());
+			} catch (IOException ex) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+					"Unable to generate the checkers for " + entry.getKey() + ": " + ex, entry.getKey());
+			}
+		}
+
+		if (roundEnv.processingOver()) {
+			try {
+				if (mergeEarlierIndex() || !index.isEmpty()) {
+					writeIndex();
+				}
+			} catch (IOException ex) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+					"Unable to write the checker index " + CheckerIndex.INDEX + ": " + ex);
+			}
+		}
+
+		// other processors may want to see @Checks too
+		return false;
+	}
+
+	/**
+	 * @return the checker's line in the index: the theorem it checks, its
+	 *         class, its signature and the requirement variable each of its
+	 *         parameters is bound to, separated by tabs
+	 */
+	private String indexLine(TypeElement type, ExecutableElement checker) {
+		StringBuilder reqVars = new StringBuilder();
+		for (VariableElement param : checker.getParameters()) {
+			if (reqVars.length() > 0) {
+				reqVars.append(',');
+			}
+			ReqVar reqVar = param.getAnnotation(ReqVar.class);
+			reqVars.append(reqVar != null ? reqVar.value() : "-");
+		}
+		return checker.getAnnotation(Checks.class).value() + '\t'
+			+ processingEnv.getElementUtils().getBinaryName(type) + '\t'
+			+ signature(checker) + '\t'
+			+ reqVars;
+	}
+
+	private void addProcessed(TypeElement type) {
+		processed.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+		for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+			addProcessed(nested);
+		}
+	}
+
+	/**
+	 * Adds the lines of the index from an earlier build that are for classes
+	 * this build hasn't processed, so that they aren't lost when only some
+	 * of the classes are recompiled.
+	 *
+	 * @return whether there was an earlier index
+	 */
+	private boolean mergeEarlierIndex() throws IOException {
+		BufferedReader in;
+		try {
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", CheckerIndex.INDEX);
+			in = new BufferedReader(file.openReader(true));
+		} catch (IOException ex) {
+			// there isn't one, as on a clean build
+			return false;
+		}
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length >= 3 && !processed.contains(fields[1])) {
+					index.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	private void writeIndex() throws IOException {
+		FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", CheckerIndex.INDEX);
+		PrintWriter out = new PrintWriter(file.openWriter());
+		try {
+			out.println("# theorem, checker class, checker signature, requirement variables");
+			out.println("# generated by " + getClass().getName() + ", do not edit");
+			for (String line : index) {
+				out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the factory for the checkers in one class.
+	 */
+	private void generate(TypeElement type, List<ExecutableElement> checkers) throws IOException {
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String factoryName = binaryName + CheckerInvokers.GENERATED_SUFFIX;
+		String simpleName = pkg.isUnnamed() ? factoryName : factoryName.substring(pkg.getQualifiedName().length() + 1);
+		String typeName = sourceName(type.asType());
+
+		Element[] originating = { type };
+		JavaFileObject file = processingEnv.getFiler().createSourceFile(factoryName, originating);
+		PrintWriter out = new PrintWriter(file.openWriter());
+		try {
+			if (!pkg.isUnnamed()) {
+				out.println("package " + pkg.getQualifiedName() + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * Calls the checkers in " + typeName + ".");
+			out.println(" * Generated by " + getClass().getName() + ", do not edit.");
+			out.println(" */");
+			out.println("@SuppressWarnings(\"all\")");
+			out.println("public final class " + simpleName + " implements " + CheckerInvokerFactory.class.getName() + " {");
+			out.println();
+			out.println("\tpublic " + CheckerInvokerFactory.class.getPackage().getName() + ".CheckerInvoker forChecker(String signature) {");
+			for (ExecutableElement checker : checkers) {
+				String signature = signature(checker);
+				out.println("\t\tif (signature.equals(\"" + signature + "\")) {");
+				out.println("\t\t\treturn new " + CheckerInvokerFactory.class.getPackage().getName() + ".CheckerInvoker() {");
+				out.println("\t\t\t\tpublic void invoke(Object target, Object[] args) throws Throwable {");
+				out.println("\t\t\t\t\t" + call(typeName, checker) + ";");
+				out.println("\t\t\t\t}");
+				out.println();
+				out.println("\t\t\t\tpublic String toString() {");
+				out.println("\t\t\t\t\treturn \"" + typeName + "." + signature + "\";");
+				out.println("\t\t\t\t}");
+				out.println("\t\t\t};");
+				out.println("\t\t}");
+			}
+			out.println("\t\treturn null;");
+			out.println("\t}");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the direct call to the checker, with each argument cast (and
+	 *         unboxed) to the type of its parameter
+	 */
+	private String call(String typeName, ExecutableElement checker) {
+		StringBuilder call = new StringBuilder();
+		if (checker.getModifiers().contains(Modifier.STATIC)) {
+			call.append(typeName);
+		} else {
+			call.append("((").append(typeName).append(") target)");
+		}
+		call.append('.').append(checker.getSimpleName()).append('(');
+		List<? extends VariableElement> params = checker.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			if (i > 0) {
+				call.append(", ");
+			}
+			TypeMirror type = params.get(i).asType();
+			if (type.getKind().isPrimitive()) {
+				TypeElement boxed = processingEnv.getTypeUtils().boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()));
+				call.append("((").append(boxed.getQualifiedName()).append(") args[").append(i).append("]).")
+					.append(type.toString()).append("Value()");
+			} else {
+				call.append("(").append(sourceName(type)).append(") args[").append(i).append("]");
+			}
+		}
+		return call.append(')').toString();
+	}
+
+	/**
+	 * @return the checker's name and parameter types, in the same form as
+	 *         {@link CheckerInvokers#signature(java.lang.reflect.Method)}
+	 */
+	private String signature(ExecutableElement checker) {
+		StringBuilder signature = new StringBuilder(checker.getSimpleName()).append('(');
+		List<? extends VariableElement> params = checker.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			if (i > 0) {
+				signature.append(',');
+			}
+			signature.append(runtimeName(params.get(i).asType()));
+		}
+		return signature.append(')').toString();
+	}
+
+	/**
+	 * @return the name of the type as it is written in source, without any
+	 *         type arguments
+	 */
+	private String sourceName(TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type).toString();
+	}
+
+	/**
+	 * @return the name of the type's runtime class, with arrays written as
+	 *         they are in source
+	 */
+	private String runtimeName(TypeMirror type) {
+		TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+		if (erased.getKind() == TypeKind.ARRAY) {
+			return runtimeName(((ArrayType) erased).getComponentType()) + "[]";
+		} else if (erased.getKind() == TypeKind.DECLARED) {
+			TypeElement element = (TypeElement) ((DeclaredType) erased).asElement();
+			return processingEnv.getElementUtils().getBinaryName(element).toString();
+		} else {
+			return erased.toString();
+		}
+	}
+
+	private boolean isCallable(ExecutableElement checker) {
+		if (checker.getModifiers().contains(Modifier.PRIVATE)) {
+			return false;
+		}
+		for (VariableElement param : checker.getParameters()) {
+			TypeMirror type = processingEnv.getTypeUtils().erasure(param.asType());
+			while (type.getKind() == TypeKind.ARRAY) {
+				type = ((ArrayType) type).getComponentType();
+			}
+			if (type.getKind() == TypeKind.DECLARED
+					&& !isAccessible((TypeElement) ((DeclaredType) type).asElement())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the type can be named from another class in its package
+	 */
+	private boolean isAccessible(TypeElement type) {
+		for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE) || e.getModifiers().contains(Modifier.PROTECTED)) {
+				return false;
+			}
+			if (e instanceof TypeElement) {
+				NestingKind nesting = ((TypeElement) e).getNestingKind();
+				if (nesting == NestingKind.LOCAL || nesting == NestingKind.ANONYMOUS) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,361 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The positions of an isOutput array that a checked method changed, with
+ * their values before and after the call.
+ *
+ * A checker gets one by declaring a parameter of this type bound to the
+ * array's output variable, instead of taking the whole array before and
+ * after the call:
+ *
+ * <pre>
+ * &#064;Checks("fill")
+ * public void checkFill(&#064;ReqVar("arr'") ArrayDelta changes, &#064;ReqVar("pos") int pos) throws Throwable {
+ *     for (int i = 0; i &lt; changes.size(); i++) {
+ *         if (changes.getIndex(i) != pos) {
+ *             throw new Exception("changed position " + changes.getIndex(i));
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * The checker then only looks at what changed. To work out the delta, the
+ * shell copies the array's elements into a buffer when the call starts,
+ * which is reused from one call to the next, and compares them with the
+ * array when the call returns, so no snapshot of the array is kept or
+ * handed to the checker. The elements of an array of objects are compared
+ * by identity, so it is the array itself that is tracked and not the
+ * objects in it.
+ *
+ * That is O(n) work for every call, however few elements the call changes,
+ * since a method can change any element. When the array's ReqVar names the
+ * indices the method is meant to change, with
+ * {@link edu.virginia.cs.shellac.annotations.ReqVar#touches()}, only the
+ * chunks of the array holding them are copied and compared, as for a
+ * {@link ChunkedSnapshot}, and the rest are hashed, which still reads them
+ * but doesn't copy them. If the method then changes anything outside those
+ * chunks, the delta can't say where, and {@link #isComplete()} is false.
+ */
+public final class ArrayDelta {
+
+	private final int length;
+	private final int[] indices;
+
+	// the old and new values at each changed position, in arrays of the
+	// array's component type, so they are only boxed when they are asked for
+	private final Object oldValues;
+	private final Object newValues;
+
+	private final boolean complete;
+
+	private ArrayDelta(int length, int[] indices, Object oldValues, Object newValues, boolean complete) {
+		this.length = length;
+		this.indices = indices;
+		this.oldValues = oldValues;
+		this.newValues = newValues;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return how many positions changed
+	 */
+	public int size() {
+		return indices.length;
+	}
+
+	/**
+	 * @return the position of the i-th change, in increasing order
+	 */
+	public int getIndex(int i) {
+		return indices[i];
+	}
+
+	/**
+	 * @return the value at the i-th changed position before the call, boxed
+	 *         if the array is of a primitive type
+	 */
+	public Object getOldValue(int i) {
+		return Array.get(oldValues, i);
+	}
+
+	/**
+	 * @return the value at the i-th changed position after the call
+	 */
+	public Object getNewValue(int i) {
+		return Array.get(newValues, i);
+	}
+
+	/**
+	 * @return whether the call changed the given position of the array
+	 */
+	public boolean isChanged(int index) {
+		return find(index) >= 0;
+	}
+
+	/**
+	 * @return the length of the array
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return whether every change is listed, which it is unless the method
+	 *         changed the array outside the chunks holding the indices it
+	 *         touches
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	private int find(int index) {
+		int lo = 0;
+		int hi = indices.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (indices[mid] < index) {
+				lo = mid + 1;
+			} else if (indices[mid] > index) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("ArrayDelta[");
+		for (int i = 0; i < indices.length; i++) {
+			if (i > 0) {
+				s.append(", ");
+			}
+			s.append(indices[i]).append(": ").append(getOldValue(i)).append(" -> ").append(getNewValue(i));
+		}
+		if (!complete) {
+			s.append(indices.length > 0 ? ", " : "").append("...");
+		}
+		return s.append(']').toString();
+	}
+
+	/**
+	 * Copies the array's elements when the call starts, into the buffer that
+	 * was last released to the given pool if it fits, or only the chunks
+	 * holding the touched indices if there are any.
+	 *
+	 * @return the copy, to be passed to {@link #diff}, or null if the value
+	 *         isn't an array
+	 */
+	static Object begin(Object array, int[] touched, AtomicReference<Object> pool) {
+		if (array == null || !array.getClass().isArray()) {
+			return null;
+		}
+		if (touched.length > 0) {
+			return ChunkedSnapshot.begin(array, touched);
+		}
+		int length = Array.getLength(array);
+		Object before = pool.getAndSet(null);
+		if (before == null || before.getClass() != array.getClass() || Array.getLength(before) != length) {
+			before = Array.newInstance(array.getClass().getComponentType(), length);
+		}
+		System.arraycopy(array, 0, before, 0, length);
+		return before;
+	}
+
+	/**
+	 * Works out what changed since {@link #begin}, and gives the copy back to
+	 * the pool for the next call.
+	 *
+	 * @return the delta, or null if there was no array
+	 */
+	static ArrayDelta diff(Object before, Object array, AtomicReference<Object> pool) {
+		if (before instanceof ChunkedSnapshot) {
+			return array == null ? null : diff((ChunkedSnapshot) before, array);
+		}
+		if (before == null || array == null || before.getClass() != array.getClass()
+				|| Array.getLength(before) != Array.getLength(array)) {
+			return null;
+		}
+		int length = Array.getLength(array);
+		Indices found = new Indices();
+		changed(before, array, 0, found);
+		int[] changed = found.toArray();
+
+		Object oldValues = gather(before, changed);
+		Object newValues = gather(array, changed);
+		pool.set(before);
+		return new ArrayDelta(length, changed, oldValues, newValues, true);
+	}
+
+	/**
+	 * Works out what changed in the copied chunks, and whether anything
+	 * changed in the others.
+	 */
+	private static ArrayDelta diff(ChunkedSnapshot snapshot, Object array) {
+		snapshot.end(array);
+		int chunkSize = snapshot.getChunkSize();
+		Indices found = new Indices();
+		boolean complete = true;
+		for (int chunk = 0; chunk < snapshot.getChunkCount(); chunk++) {
+			if (snapshot.isChunkCopied(chunk)) {
+				changed(snapshot.copyBefore(chunk), snapshot.copyAfter(chunk), chunk * chunkSize, found);
+			} else if (snapshot.isChunkChanged(chunk)) {
+				complete = false;
+			}
+		}
+		int[] changed = found.toArray();
+
+		Class<?> type = array.getClass().getComponentType();
+		Object oldValues = Array.newInstance(type, changed.length);
+		Object newValues = Array.newInstance(type, changed.length);
+		for (int i = 0; i < changed.length; i++) {
+			int chunk = snapshot.chunkOf(changed[i]);
+			System.arraycopy(snapshot.copyBefore(chunk), changed[i] % chunkSize, oldValues, i, 1);
+			System.arraycopy(snapshot.copyAfter(chunk), changed[i] % chunkSize, newValues, i, 1);
+		}
+		return new ArrayDelta(snapshot.getLength(), changed, oldValues, newValues, complete);
+	}
+
+	/**
+	 * @return a new array of the elements at the given positions, of the
+	 *         same type as the given array
+	 */
+	private static Object gather(Object array, int[] indices) {
+		if (array instanceof int[]) {
+			int[] from = (int[]) array;
+			int[] values = new int[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				values[i] = from[indices[i]];
+			}
+			return values;
+		} else if (array instanceof Object[]) {
+			Object[] from = (Object[]) array;
+			Object[] values = new Object[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				values[i] = from[indices[i]];
+			}
+			return values;
+		} else if (array instanceof long[]) {
+			long[] from = (long[]) array;
+			long[] values = new long[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				values[i] = from[indices[i]];
+			}
+			return values;
+		}
+		Object values = Array.newInstance(array.getClass().getComponentType(), indices.length);
+		for (int i = 0; i < indices.length; i++) {
+			System.arraycopy(array, indices[i], values, i, 1);
+		}
+		return values;
+	}
+
+	/**
+	 * Adds the positions where the two arrays differ, plus the given offset,
+	 * to the changed positions. Doubles and floats are compared by their
+	 * bits, as the boxed values would be, so that a NaN that stayed put
+	 * isn't a change.
+	 */
+	private static void changed(Object before, Object after, int offset, Indices changed) {
+		if (before instanceof int[]) {
+			int[] a = (int[]) before;
+			int[] b = (int[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof Object[]) {
+			Object[] a = (Object[]) before;
+			Object[] b = (Object[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof long[]) {
+			long[] a = (long[]) before;
+			long[] b = (long[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof byte[]) {
+			byte[] a = (byte[]) before;
+			byte[] b = (byte[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof double[]) {
+			double[] a = (double[]) before;
+			double[] b = (double[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (Double.doubleToLongBits(a[i]) != Double.doubleToLongBits(b[i])) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof float[]) {
+			float[] a = (float[]) before;
+			float[] b = (float[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (Float.floatToIntBits(a[i]) != Float.floatToIntBits(b[i])) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof short[]) {
+			short[] a = (short[]) before;
+			short[] b = (short[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		} else if (before instanceof char[]) {
+			char[] a = (char[]) before;
+			char[] b = (char[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		} else {
+			boolean[] a = (boolean[]) before;
+			boolean[] b = (boolean[]) after;
+			for (int i = 0; i < b.length; i++) {
+				if (a[i] != b[i]) {
+					changed.add(offset + i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A growable list of the changed positions, which is usually short.
+	 */
+	private static class Indices {
+		private int[] indices = new int[4];
+		private int size;
+
+		void add(int index) {
+			if (size == indices.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(indices, 0, grown, 0, size);
+				indices = grown;
+			}
+			indices[size++] = index;
+		}
+
+		int[] toArray() {
+			int[] exact = new int[size];
+			System.arraycopy(indices, 0, exact, 0, size);
+			return exact;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the checkers on background threads instead of in the checked method.
+ *
+ * In async mode the shell copies everything the checkers will need, hands
+ * the checkers to a bounded pool of daemon threads, and returns right away,
+ * so a slow checker no longer adds to the caller's latency. Failures are
+ * handled by {@link ShellViolations} just like failed checks in the checked
+ * method, except that the THROW policy can only record them, since the
+ * caller has already returned; recorded violations go to the listener set
+ * with {@link ShellViolations#setListener(ShellViolationListener)}. The
+ * checker threads are daemons, so checks still waiting when the program
+ * exits are never run.
+ *
+ * Async mode is configured with system properties:
+ * <ul>
+ * <li>shellac.async=true turns it on</li>
+ * <li>shellac.async.threads is the number of checker threads (default: number of processors)</li>
+ * <li>shellac.async.queue is how many calls can be waiting to be checked (default: 1024)</li>
+ * <li>shellac.async.backpressure is what to do when the queue is full:
+ *     block (the default), drop or inline. See {@link Backpressure}.</li>
+ * </ul>
+ */
+public final class AsyncChecks {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	/**
+	 * What a checked method does when the checkers have fallen so far behind
+	 * that the queue is full.
+	 */
+	public enum Backpressure {
+		/** wait for room in the queue, or run the checks in the checked method if interrupted while waiting */
+		BLOCK,
+		/** skip the checks for this call, and count them in {@link AsyncChecks#getDropped()} */
+		DROP,
+		/** run the checks in the checked method, as if async mode were off */
+		INLINE
+	}
+
+	private static final boolean enabled = Boolean.getBoolean("shellac.async");
+
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private AsyncChecks() {}
+
+	/**
+	 * @return whether the checkers run in the background
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return how many calls were not checked because the queue was full
+	 *         and the backpressure policy is {@link Backpressure#DROP}
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of calls waiting to be checked
+	 */
+	public static int getQueued() {
+		return enabled ? Pool.executor.getQueue().size() : 0;
+	}
+
+	/**
+	 * Runs the given checks on a checker thread, or as the backpressure
+	 * policy says if there isn't any room for them.
+	 *
+	 * @return false if the caller should run the checks itself, in the
+	 *         checked method, because the policy is {@link Backpressure#INLINE}
+	 *         or the caller was interrupted while it waited for room
+	 */
+	static boolean submit(Runnable checks) {
+		try {
+			Pool.executor.execute(checks);
+			return true;
+		} catch (RejectedExecutionException ex) {
+			if (ex != RUN_INLINE) {
+				throw ex;
+			}
+			return false;
+		}
+	}
+
+	// thrown by the rejection handlers to have the caller run the checks, and
+	// made once, since it is only a signal
+	private static final RejectedExecutionException RUN_INLINE =
+		new RejectedExecutionException("run the checks in the checked method");
+
+	/**
+	 * The checker threads, which aren't started unless async mode is used.
+	 */
+	private static class Pool {
+		static final ThreadPoolExecutor executor;
+
+		static {
+			int threads = Integer.getInteger("shellac.async.threads", Runtime.getRuntime().availableProcessors());
+			int queue = Integer.getInteger("shellac.async.queue", 1024);
+			Backpressure backpressure = Backpressure.BLOCK;
+			String policy = System.getProperty("shellac.async.backpressure");
+			if (policy != null) {
+				try {
+					backpressure = Backpressure.valueOf(policy.trim().toUpperCase());
+				} catch (IllegalArgumentException ex) {
+					log.log(Level.WARNING, "Unknown backpressure policy \"" + policy + "\", using " + backpressure);
+				}
+			}
+
+			executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new CheckerThreadFactory(), rejectionHandler(backpressure));
+		}
+
+		private static RejectedExecutionHandler rejectionHandler(Backpressure backpressure) {
+			switch (backpressure) {
+			case DROP:
+				return new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						dropped.incrementAndGet();
+					}
+				};
+			case INLINE:
+				// not CallerRunsPolicy, which would run them as if they were
+				// on a checker thread, so violations couldn't be thrown
+				return new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						throw RUN_INLINE;
+					}
+				};
+			default:
+				return new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						try {
+							executor.getQueue().put(r);
+						} catch (InterruptedException ex) {
+							// the checked method has already run, so rather than
+							// fail the call, check it here and leave the interrupt
+							// for the caller to see
+							Thread.currentThread().interrupt();
+							throw RUN_INLINE;
+						}
+					}
+				};
+			}
+		}
+	}
+
+	private static class CheckerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "shellac-checker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
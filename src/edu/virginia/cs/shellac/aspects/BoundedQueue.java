@@ -0,0 +1,104 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size queue that any number of threads can offer to and poll from
+ * without locking.
+ *
+ * Each cell of the ring has a sequence number that says whether it is
+ * waiting for a value or for a reader, so a thread claims a cell with a
+ * single compare-and-set on the head or tail and never waits for another
+ * thread. When the queue is full, {@link #offer(Object)} fails right away
+ * instead of blocking.
+ */
+class BoundedQueue<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> values;
+	private final AtomicLongArray sequences;
+
+	// the next position to write, and to read
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * @param capacity the most values the queue will hold, which is rounded
+	 *        up to a power of two
+	 */
+	BoundedQueue(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.values = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds a value to the queue, if there is room for it.
+	 *
+	 * @return false if the queue was full
+	 */
+	boolean offer(E value) {
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					values.set(index, value);
+					// publish the value to readers
+					sequences.lazySet(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// the reader hasn't got to this cell since we last wrote it
+				return false;
+			} else {
+				// another writer got this cell first
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest value in the queue, or null if it is empty
+	 */
+	E poll() {
+		long pos = head.get();
+		while (true) {
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					E value = values.get(index);
+					values.set(index, null);
+					// hand the cell back to the writers, one lap later
+					sequences.lazySet(index, pos + mask + 1);
+					return value;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * @return roughly how many values are in the queue
+	 */
+	int size() {
+		long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int) Math.min(size, mask + 1);
+	}
+}
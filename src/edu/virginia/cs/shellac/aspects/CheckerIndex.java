@@ -0,0 +1,186 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.virginia.cs.shellac.annotations.Checks;
+
+/**
+ * The {@link Checks} methods of every class on a classpath, read from the
+ * indexes that the annotation processor writes at build time, so checkers
+ * in other classes and jars can be found without scanning the classpath.
+ *
+ * Each jar or output folder built with the processor has an index at
+ * {@link #INDEX}, with a line for each checker: the theorem it checks, its
+ * class, its signature (as {@link CheckerInvokers#signature(Method)} writes
+ * it) and the requirement variables its parameters are bound to, separated
+ * by tabs. All the indexes a class loader can see are read the first time a
+ * shell asks for them, but a checker's class is only loaded when a method
+ * that satisfies its theorem is first called.
+ */
+public final class CheckerIndex {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	public static final String INDEX = "META-INF/shellac/checkers.idx";
+
+	private static final Map<ClassLoader, CheckerIndex> indexes =
+		Collections.synchronizedMap(new WeakHashMap<ClassLoader, CheckerIndex>());
+
+	// theorem -> the class and signature of each checker that the index lists for it
+	private final Map<String, List<String[]>> entries;
+
+	// theorem -> the checkers that were found for it, held weakly since a
+	// Method keeps its class loader, which is the index's key in indexes,
+	// from being collected. The shells' plans hold the ones that are used.
+	private final ConcurrentMap<String, List<WeakReference<Method>>> resolved =
+		new ConcurrentHashMap<String, List<WeakReference<Method>>>();
+
+	private CheckerIndex(Map<String, List<String[]>> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Gets the index of every checker the given class loader can see,
+	 * reading it if this is the first time it has been asked for.
+	 */
+	static CheckerIndex forClassLoader(ClassLoader loader) {
+		if (loader == null) {
+			loader = ClassLoader.getSystemClassLoader();
+		}
+		synchronized (indexes) {
+			CheckerIndex index = indexes.get(loader);
+			if (index == null) {
+				index = new CheckerIndex(read(loader));
+				indexes.put(loader, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Gets the methods that check the given theorem, loading their classes
+	 * if need be. Checkers that are in the index but can't be found, because
+	 * the index is out of date, are logged and left out.
+	 *
+	 * @param loader the class loader the index was read from
+	 * @return an unmodifiable list, which is empty if there are no checkers
+	 */
+	List<Method> getCheckers(String theorem, ClassLoader loader) {
+		List<Method> checkers = get(resolved.get(theorem));
+		if (checkers == null) {
+			// not resolved yet, or some of the checkers have been collected
+			checkers = resolve(theorem, loader);
+			List<WeakReference<Method>> references = new ArrayList<WeakReference<Method>>(checkers.size());
+			for (Method checker : checkers) {
+				references.add(new WeakReference<Method>(checker));
+			}
+			resolved.put(theorem, references);
+		}
+		return checkers;
+	}
+
+	/**
+	 * @return the checkers, or null if they haven't been resolved or any have been collected
+	 */
+	private static List<Method> get(List<WeakReference<Method>> references) {
+		if (references == null) {
+			return null;
+		}
+		List<Method> checkers = new ArrayList<Method>(references.size());
+		for (WeakReference<Method> reference : references) {
+			Method checker = reference.get();
+			if (checker == null) {
+				return null;
+			}
+			checkers.add(checker);
+		}
+		return Collections.unmodifiableList(checkers);
+	}
+
+	private List<Method> resolve(String theorem, ClassLoader loader) {
+		List<String[]> listed = entries.get(theorem);
+		if (listed == null) {
+			return Collections.emptyList();
+		}
+		List<Method> checkers = new ArrayList<Method>(listed.size());
+		for (String[] entry : listed) {
+			Method checker = find(entry[0], entry[1], loader);
+			if (checker == null || checker.getAnnotation(Checks.class) == null
+					|| !checker.getAnnotation(Checks.class).value().equals(theorem)) {
+				log.log(Level.WARNING, "The checker " + entry[0] + "." + entry[1] + " for \"" + theorem + "\" is in "
+					+ INDEX + " but couldn't be found, so it won't be run. The index may be out of date.");
+			} else if (!checkers.contains(checker)) {
+				checkers.add(checker);
+			}
+		}
+		return Collections.unmodifiableList(checkers);
+	}
+
+	private static Method find(String className, String signature, ClassLoader loader) {
+		Class<?> type;
+		try {
+			type = Class.forName(className, false, loader);
+		} catch (ClassNotFoundException ex) {
+			return null;
+		} catch (LinkageError ex) {
+			return null;
+		}
+		for (Method method : type.getDeclaredMethods()) {
+			if (CheckerInvokers.signature(method).equals(signature)) {
+				return method;
+			}
+		}
+		return null;
+	}
+
+	private static Map<String, List<String[]>> read(ClassLoader loader) {
+		Map<String, List<String[]>> entries = new HashMap<String, List<String[]>>();
+		try {
+			Enumeration<URL> resources = loader.getResources(INDEX);
+			while (resources.hasMoreElements()) {
+				URL url = resources.nextElement();
+				BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						if (line.length() == 0 || line.startsWith("#")) {
+							continue;
+						}
+						String[] fields = line.split("\t");
+						if (fields.length < 3) {
+							log.log(Level.WARNING, "Ignoring \"" + line + "\" in " + url + ", expected theorem, class and signature");
+							continue;
+						}
+						List<String[]> checkers = entries.get(fields[0]);
+						if (checkers == null) {
+							checkers = new ArrayList<String[]>(1);
+							entries.put(fields[0], checkers);
+						}
+						checkers.add(new String[] { fields[1], fields[2] });
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Unable to read " + INDEX + ", so only the checkers in each checked class will be found", ex);
+		}
+		return entries;
+	}
+}
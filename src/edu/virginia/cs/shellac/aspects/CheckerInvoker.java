@@ -0,0 +1,20 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * Something that can run a single {@link edu.virginia.cs.shellac.annotations.Checks}
+ * method. Invokers are linked once per checker (see {@link CheckerInvokers#link})
+ * and then reused for every call, so nothing about the checker has to be looked
+ * up again when it runs.
+ */
+public interface CheckerInvoker {
+
+	/**
+	 * Runs the checker.
+	 *
+	 * @param target the object to run the checker on
+	 * @param args one argument per checker parameter, in order. Primitive
+	 *        parameters are passed in their boxed form.
+	 * @throws Throwable whatever the checker itself throws
+	 */
+	void invoke(Object target, Object[] args) throws Throwable;
+}
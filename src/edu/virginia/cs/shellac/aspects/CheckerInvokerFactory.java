@@ -0,0 +1,20 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * Makes invokers for the checkers in one class. These are generated at
+ * compile time by the Shellac annotation processor, as a class named after
+ * the checkers' class with "$ShellacCheckers" added, and call the checkers
+ * directly instead of through reflection.
+ *
+ * @see CheckerInvokers#link(java.lang.reflect.Method)
+ */
+public interface CheckerInvokerFactory {
+
+	/**
+	 * @param signature the checker's name and parameter types, as given by
+	 *        {@link CheckerInvokers#signature(java.lang.reflect.Method)}
+	 * @return an invoker for the checker, or null if this factory doesn't
+	 *         have one for it
+	 */
+	CheckerInvoker forChecker(String signature);
+}
@@ -0,0 +1,151 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Links checker methods to {@link CheckerInvoker}s.
+ *
+ * Each checker is linked once. If the annotation processor generated a
+ * {@link CheckerInvokerFactory} for the checker's class, the checker is
+ * called directly through the invoker it makes. Otherwise, such as for
+ * private checkers or classes compiled without the processor, it is called
+ * through reflection: the access checks that Method.invoke would otherwise
+ * repeat on every call are turned off up front, and the arity of the checker
+ * is fixed so that a bad argument array is caught before the reflective
+ * call is made.
+ */
+public final class CheckerInvokers {
+
+	/**
+	 * What is added to the name of a class to get the name of the
+	 * {@link CheckerInvokerFactory} generated for its checkers.
+	 */
+	public static final String GENERATED_SUFFIX = "$ShellacCheckers";
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	private static final ConcurrentMap<Method, CheckerInvoker> invokers =
+		new ConcurrentHashMap<Method, CheckerInvoker>();
+
+	// the generated factory for each class, or NO_FACTORY if there isn't one
+	private static final ConcurrentMap<Class<?>, CheckerInvokerFactory> factories =
+		new ConcurrentHashMap<Class<?>, CheckerInvokerFactory>();
+
+	private static final CheckerInvokerFactory NO_FACTORY = new CheckerInvokerFactory() {
+		public CheckerInvoker forChecker(String signature) {
+			return null;
+		}
+	};
+
+	private CheckerInvokers() {}
+
+	/**
+	 * Gets the invoker for the given checker method, linking it if this is
+	 * the first time it has been asked for.
+	 */
+	public static CheckerInvoker link(Method checker) {
+		CheckerInvoker invoker = invokers.get(checker);
+		if (invoker == null) {
+			CheckerInvoker linked = getFactory(checker.getDeclaringClass()).forChecker(signature(checker));
+			if (linked == null) {
+				linked = new ReflectiveInvoker(checker);
+			}
+			invoker = invokers.putIfAbsent(checker, linked);
+			if (invoker == null) {
+				invoker = linked;
+			}
+		}
+		return invoker;
+	}
+
+	/**
+	 * @return the checker's name and parameter types, like
+	 *         "checkCopy(int[],int[])", which is how generated factories
+	 *         know which checker is wanted. ShellProofs uses the same form
+	 *         for the methods it lists as proven.
+	 */
+	public static String signature(Method checker) {
+		StringBuilder signature = new StringBuilder(checker.getName()).append('(');
+		Class<?>[] types = checker.getParameterTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) {
+				signature.append(',');
+			}
+			signature.append(typeName(types[i]));
+		}
+		return signature.append(')').toString();
+	}
+
+	private static String typeName(Class<?> type) {
+		return type.isArray() ? typeName(type.getComponentType()) + "[]" : type.getName();
+	}
+
+	private static CheckerInvokerFactory getFactory(Class<?> type) {
+		CheckerInvokerFactory factory = factories.get(type);
+		if (factory == null) {
+			factory = loadFactory(type);
+			factories.putIfAbsent(type, factory);
+		}
+		return factory;
+	}
+
+	private static CheckerInvokerFactory loadFactory(Class<?> type) {
+		Class<?> generated;
+		try {
+			generated = Class.forName(type.getName() + GENERATED_SUFFIX, true, type.getClassLoader());
+		} catch (ClassNotFoundException ex) {
+			// not compiled with the annotation processor
+			return NO_FACTORY;
+		}
+		try {
+			return (CheckerInvokerFactory) generated.getConstructor().newInstance();
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Unable to use the generated checkers in " + generated
+				+ ", so the checkers in " + type + " will be called through reflection", ex);
+			return NO_FACTORY;
+		}
+	}
+
+	/**
+	 * Invokes a checker through reflection, but without the per-call access
+	 * checks, and rethrows whatever the checker throws instead of wrapping it
+	 * in an InvocationTargetException.
+	 */
+	static class ReflectiveInvoker implements CheckerInvoker {
+		private final Method method;
+		private final int arity;
+
+		ReflectiveInvoker(Method method) {
+			this.method = method;
+			this.arity = method.getParameterTypes().length;
+			try {
+				method.setAccessible(true);
+			} catch (SecurityException ex) {
+				// we'll just have to pay for the access checks on every call
+				log.log(Level.FINE, "Unable to suppress the access checks for " + method, ex);
+			}
+		}
+
+		public void invoke(Object target, Object[] args) throws Throwable {
+			if (args.length != arity) {
+				throw new IllegalArgumentException(method + " takes " + arity
+					+ " arguments, but was given " + args.length);
+			}
+			try {
+				method.invoke(target, args);
+			} catch (InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return method.toString();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import edu.virginia.cs.shellac.annotations.Checks;
+
+/**
+ * An index of the {@link Checks} methods of a class, keyed by the name of
+ * the requirement (theorem) that each method checks.
+ *
+ * The index for a class is built once, the first time a protection shell
+ * in that class asks for it, so finding the checkers for a theorem is a
+ * single map lookup instead of a scan over all of the class's methods.
+ */
+public class CheckerRegistry {
+
+	private static final ConcurrentMap<Class<?>, CheckerRegistry> registries =
+		new ConcurrentHashMap<Class<?>, CheckerRegistry>();
+
+	private final Class<?> type;
+
+	// theorem name -> the methods that check it, in the order getMethods() returned them
+	private final Map<String, List<Method>> checkersByTheorem;
+
+	private final int size;
+	private final long buildTimeNanos;
+
+	private CheckerRegistry(Class<?> type) {
+		long start = System.nanoTime();
+
+		Map<String, List<Method>> index = new HashMap<String, List<Method>>();
+		int count = 0;
+		for (Method method : type.getMethods()) {
+			Checks checks = method.getAnnotation(Checks.class);
+			if (checks != null) {
+				List<Method> checkers = index.get(checks.value());
+				if (checkers == null) {
+					checkers = new ArrayList<Method>(1);
+					index.put(checks.value(), checkers);
+				}
+				checkers.add(method);
+				count++;
+			}
+		}
+
+		for (Map.Entry<String, List<Method>> entry : index.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+
+		this.type = type;
+		this.checkersByTheorem = index;
+		this.size = count;
+		this.buildTimeNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Gets the registry for the given class, building it if this is the
+	 * first time it has been asked for.
+	 */
+	public static CheckerRegistry forClass(Class<?> type) {
+		CheckerRegistry registry = registries.get(type);
+		if (registry == null) {
+			// two threads may race to build the index, but they will build the
+			// same thing, so we just keep whichever one gets there first
+			CheckerRegistry built = new CheckerRegistry(type);
+			registry = registries.putIfAbsent(type, built);
+			if (registry == null) {
+				registry = built;
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Gets the methods that check the given theorem.
+	 *
+	 * @return an unmodifiable list, which is empty if there are no checkers
+	 */
+	public List<Method> getCheckers(String theorem) {
+		List<Method> checkers = checkersByTheorem.get(theorem);
+		if (checkers == null) {
+			return Collections.emptyList();
+		}
+		return checkers;
+	}
+
+	/**
+	 * @return the class whose checkers are indexed by this registry
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * @return the number of checker methods in this registry
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of distinct theorems that have at least one checker
+	 */
+	public int getTheoremCount() {
+		return checkersByTheorem.size();
+	}
+
+	/**
+	 * @return how long it took to build this registry, in nanoseconds
+	 */
+	public long getBuildTimeNanos() {
+		return buildTimeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "CheckerRegistry[" + type.getName() + ": " + size + " checkers for "
+			+ checkersByTheorem.size() + " theorems, built in " + buildTimeNanos + "ns]";
+	}
+}
@@ -0,0 +1,337 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * What a checked method changed in a large isOutput array, worked out from
+ * hashes of the array's chunks instead of a copy of the whole array.
+ *
+ * A checker gets one by declaring a parameter of this type bound to the
+ * array's output variable. When the call starts, the shell hashes each
+ * chunk of the array (4 KB of it, or -Dshellac.chunk bytes), except for the
+ * chunks holding the indices the method is meant to change, as named by
+ * {@link edu.virginia.cs.shellac.annotations.ReqVar#touches()}, which are
+ * copied. When the call returns, the chunks are hashed again and the
+ * copied ones are copied again, so the checker can see which chunks
+ * changed, and the old and new values anywhere in the copied chunks:
+ *
+ * <pre>
+ * &#064;Checks("swap")
+ * public void checkSwap(&#064;ReqVar("arr'") ChunkedSnapshot arr, &#064;ReqVar("pos1") int pos1,
+ *                       &#064;ReqVar("pos2") int pos2) throws Throwable {
+ *     if (!arr.isUnchangedExcept(pos1, pos2)) {
+ *         throw new Exception("changed more than the swapped chunks");
+ *     }
+ *     ...
+ * }
+ * </pre>
+ *
+ * Since it only compares hashes, a chunk could in principle change without
+ * its hash changing; with 64 bit hashes, that is unlikely enough to ignore
+ * for a runtime check. The elements of an array of objects are hashed by
+ * identity.
+ */
+public final class ChunkedSnapshot {
+
+	private static final int CHUNK_BYTES = Integer.getInteger("shellac.chunk", 4096);
+
+	private final int length;
+
+	// how many elements there are in a chunk
+	private final int chunkSize;
+
+	// the hash of each chunk when the call started, and whether it changed
+	private final long[] hashes;
+	private final boolean[] changed;
+
+	// the chunks that are copied, and their elements before and after the call
+	private final boolean[] copied;
+	private final Object[] before;
+	private final Object[] after;
+
+	private ChunkedSnapshot(int length, int chunkSize) {
+		this.length = length;
+		this.chunkSize = chunkSize;
+		int chunks = (length + chunkSize - 1) / chunkSize;
+		this.hashes = new long[chunks];
+		this.changed = new boolean[chunks];
+		this.copied = new boolean[chunks];
+		this.before = new Object[chunks];
+		this.after = new Object[chunks];
+	}
+
+	/**
+	 * @return the number of chunks the array was split into
+	 */
+	public int getChunkCount() {
+		return hashes.length;
+	}
+
+	/**
+	 * @return how many elements there are in each chunk (except maybe the last)
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the length of the array
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the chunk that holds the given index
+	 */
+	public int chunkOf(int index) {
+		return index / chunkSize;
+	}
+
+	/**
+	 * @return whether anything in the given chunk changed during the call
+	 */
+	public boolean isChunkChanged(int chunk) {
+		return changed[chunk];
+	}
+
+	/**
+	 * @return whether the call left every chunk alone, except for the ones
+	 *         holding the given indices
+	 */
+	public boolean isUnchangedExcept(int... indices) {
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			if (changed[chunk] && !holdsAny(chunk, indices)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the old and new values at the given index are known,
+	 *         which they are for the chunks holding the touched indices
+	 */
+	public boolean isCopied(int index) {
+		return index >= 0 && index < length && copied[chunkOf(index)];
+	}
+
+	/**
+	 * @return the value at the given index before the call, boxed if the
+	 *         array is of a primitive type
+	 * @throws IllegalArgumentException if the index isn't in a copied chunk
+	 */
+	public Object getOldValue(int index) {
+		return Array.get(copyHolding(index, before), index % chunkSize);
+	}
+
+	/**
+	 * @return the value at the given index after the call
+	 * @throws IllegalArgumentException if the index isn't in a copied chunk
+	 */
+	public Object getNewValue(int index) {
+		return Array.get(copyHolding(index, after), index % chunkSize);
+	}
+
+	private Object copyHolding(int index, Object[] copies) {
+		if (!isCopied(index)) {
+			throw new IllegalArgumentException("index " + index + " isn't in one of the copied chunks, "
+				+ "which only hold the indices the method touches");
+		}
+		return copies[chunkOf(index)];
+	}
+
+	boolean isChunkCopied(int chunk) {
+		return copied[chunk];
+	}
+
+	/**
+	 * @return the copied chunk's elements before the call
+	 */
+	Object copyBefore(int chunk) {
+		return before[chunk];
+	}
+
+	/**
+	 * @return the copied chunk's elements after the call
+	 */
+	Object copyAfter(int chunk) {
+		return after[chunk];
+	}
+
+	private boolean holdsAny(int chunk, int[] indices) {
+		for (int index : indices) {
+			if (index >= 0 && chunkOf(index) == chunk) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("ChunkedSnapshot[").append(hashes.length).append(" chunks of ")
+			.append(chunkSize).append(", changed:");
+		for (int chunk = 0; chunk < changed.length; chunk++) {
+			if (changed[chunk]) {
+				s.append(' ').append(chunk);
+			}
+		}
+		return s.append(']').toString();
+	}
+
+	/**
+	 * Hashes the array's chunks, and copies the ones holding the touched
+	 * indices, when the call starts.
+	 *
+	 * @return the snapshot, to be finished with {@link #end}, or null if the
+	 *         value isn't an array
+	 */
+	static ChunkedSnapshot begin(Object array, int[] touched) {
+		if (array == null || !array.getClass().isArray()) {
+			return null;
+		}
+		int length = Array.getLength(array);
+		ChunkedSnapshot snapshot = new ChunkedSnapshot(length,
+			Math.max(1, CHUNK_BYTES / elementBytes(array.getClass().getComponentType())));
+		for (int index : touched) {
+			if (index >= 0 && index < length) {
+				snapshot.copied[snapshot.chunkOf(index)] = true;
+			}
+		}
+		for (int chunk = 0; chunk < snapshot.hashes.length; chunk++) {
+			if (snapshot.copied[chunk]) {
+				snapshot.before[chunk] = snapshot.copyChunk(array, chunk);
+			} else {
+				snapshot.hashes[chunk] = snapshot.hashChunk(array, chunk);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Works out which chunks changed when the call returns.
+	 */
+	void end(Object array) {
+		for (int chunk = 0; chunk < hashes.length; chunk++) {
+			if (copied[chunk]) {
+				after[chunk] = copyChunk(array, chunk);
+				changed[chunk] = !sameChunk(before[chunk], after[chunk]);
+			} else {
+				changed[chunk] = hashChunk(array, chunk) != hashes[chunk];
+			}
+		}
+	}
+
+	private Object copyChunk(Object array, int chunk) {
+		int from = chunk * chunkSize;
+		int size = Math.min(chunkSize, length - from);
+		Object copy = Array.newInstance(array.getClass().getComponentType(), size);
+		System.arraycopy(array, from, copy, 0, size);
+		return copy;
+	}
+
+	private static boolean sameChunk(Object a, Object b) {
+		if (a instanceof Object[]) {
+			Object[] x = (Object[]) a;
+			Object[] y = (Object[]) b;
+			for (int i = 0; i < x.length; i++) {
+				if (x[i] != y[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// compared as the boxed values would be, so a NaN that stayed put isn't a change
+		if (a instanceof int[]) {
+			return Arrays.equals((int[]) a, (int[]) b);
+		} else if (a instanceof long[]) {
+			return Arrays.equals((long[]) a, (long[]) b);
+		} else if (a instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		} else if (a instanceof double[]) {
+			return Arrays.equals((double[]) a, (double[]) b);
+		} else if (a instanceof float[]) {
+			return Arrays.equals((float[]) a, (float[]) b);
+		} else if (a instanceof short[]) {
+			return Arrays.equals((short[]) a, (short[]) b);
+		} else if (a instanceof char[]) {
+			return Arrays.equals((char[]) a, (char[]) b);
+		} else {
+			return Arrays.equals((boolean[]) a, (boolean[]) b);
+		}
+	}
+
+	private long hashChunk(Object array, int chunk) {
+		int from = chunk * chunkSize;
+		int to = Math.min(from + chunkSize, length);
+		long h = 0xcbf29ce484222325L;
+		if (array instanceof int[]) {
+			int[] a = (int[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, a[i]);
+			}
+		} else if (array instanceof long[]) {
+			long[] a = (long[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, a[i]);
+			}
+		} else if (array instanceof byte[]) {
+			byte[] a = (byte[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, a[i]);
+			}
+		} else if (array instanceof double[]) {
+			double[] a = (double[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, Double.doubleToLongBits(a[i]));
+			}
+		} else if (array instanceof Object[]) {
+			Object[] a = (Object[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, System.identityHashCode(a[i]));
+			}
+		} else if (array instanceof float[]) {
+			float[] a = (float[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, Float.floatToIntBits(a[i]));
+			}
+		} else if (array instanceof short[]) {
+			short[] a = (short[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, a[i]);
+			}
+		} else if (array instanceof char[]) {
+			char[] a = (char[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, a[i]);
+			}
+		} else {
+			boolean[] a = (boolean[]) array;
+			for (int i = from; i < to; i++) {
+				h = mix(h, a[i] ? 1 : 0);
+			}
+		}
+		return h;
+	}
+
+	private static long mix(long h, long value) {
+		h ^= value;
+		h *= 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	private static int elementBytes(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		} else if (type == short.class || type == char.class) {
+			return 2;
+		} else if (type == byte.class || type == boolean.class) {
+			return 1;
+		} else {
+			// ints, floats and references (assuming they are compressed)
+			return 4;
+		}
+	}
+}
@@ -0,0 +1,820 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A fixed-capacity ring buffer of the values of one requirement variable.
+ *
+ * There is a subclass for each primitive type, so primitive histories are
+ * stored unboxed and copied out with plain array accesses, and one for
+ * references. Appending is O(1), and the most-recent-first array that the
+ * checkers see is only built when {@link #toArray()} is called. A
+ * {@link DirectHistory} keeps primitive values outside the heap instead,
+ * optionally in a memory-mapped file.
+ *
+ * Buffers are not thread safe; {@link ReqVarHistory} and {@link HistoryView}
+ * lock the buffer itself to use it.
+ */
+abstract class HistoryBuffer {
+
+	protected final int capacity;
+
+	// where the next value goes
+	protected int head;
+	protected int size;
+
+	// how many values have ever been appended
+	protected long appended;
+
+	protected HistoryBuffer(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Creates a buffer for values of the given type.
+	 */
+	static HistoryBuffer create(Class<?> type, int capacity) {
+		if (type == Integer.TYPE) {
+			return new IntHistory(capacity);
+		} else if (type == Long.TYPE) {
+			return new LongHistory(capacity);
+		} else if (type == Double.TYPE) {
+			return new DoubleHistory(capacity);
+		} else if (type == Boolean.TYPE) {
+			return new BooleanHistory(capacity);
+		} else if (type == Byte.TYPE) {
+			return new ByteHistory(capacity);
+		} else if (type == Character.TYPE) {
+			return new CharHistory(capacity);
+		} else if (type == Short.TYPE) {
+			return new ShortHistory(capacity);
+		} else if (type == Float.TYPE) {
+			return new FloatHistory(capacity);
+		} else {
+			return new ObjectHistory(type, capacity);
+		}
+	}
+
+	/**
+	 * @return the number of values in the buffer, which is at most its capacity
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a value, dropping the oldest one if the buffer is full. Primitive
+	 * values are passed boxed, as AspectJ gives them to us.
+	 */
+	void append(Object value) {
+		store(head, value);
+		head = (head + 1) % capacity;
+		if (size < capacity) {
+			size++;
+		}
+		appended++;
+	}
+
+	/**
+	 * @return the index in the buffer of the value appended {@code count}-th,
+	 *         counting from 0, whether or not it is still there
+	 */
+	int indexOfCount(long count) {
+		return (int) (count % capacity);
+	}
+
+	/**
+	 * @return whether the value appended {@code count}-th, counting from 0,
+	 *         hasn't been overwritten since it was appended
+	 */
+	boolean isAvailable(long count) {
+		return appended <= count + capacity;
+	}
+
+	/**
+	 * @return the index in the buffer of the value from {@code age} appends ago,
+	 *         where 0 is the most recent
+	 */
+	protected int indexOf(int age) {
+		int index = head - 1 - age;
+		return index < 0 ? index + capacity : index;
+	}
+
+	protected abstract void store(int index, Object value);
+
+	/**
+	 * @return the value at the given index in the buffer, boxed if it is of a
+	 *         primitive type
+	 */
+	abstract Object valueAt(int index);
+
+	/**
+	 * @return the int, short, byte or char at the given index in the buffer
+	 * @throws UnsupportedOperationException if the buffer holds another type
+	 */
+	abstract int intAt(int index);
+
+	/**
+	 * @return the integer at the given index in the buffer, of any type
+	 * @throws UnsupportedOperationException if the buffer holds another type
+	 */
+	abstract long longAt(int index);
+
+	/**
+	 * @return the number at the given index in the buffer, of any type
+	 * @throws UnsupportedOperationException if the buffer holds another type
+	 */
+	abstract double doubleAt(int index);
+
+	/**
+	 * @return the exception for asking for the values as something they aren't
+	 */
+	protected UnsupportedOperationException unsupported(String what) {
+		return new UnsupportedOperationException("The " + describe() + " doesn't hold " + what);
+	}
+
+	/**
+	 * @return what kind of buffer this is, for messages
+	 */
+	protected String describe() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * @return a new array of the values, most recent first
+	 */
+	abstract Object toArray();
+
+	static class IntHistory extends HistoryBuffer {
+		private final int[] values;
+
+		IntHistory(int capacity) {
+			super(capacity);
+			values = new int[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Integer) value).intValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		long longAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			int[] array = new int[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class LongHistory extends HistoryBuffer {
+		private final long[] values;
+
+		LongHistory(int capacity) {
+			super(capacity);
+			values = new long[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Long) value).longValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			throw unsupported("ints");
+		}
+
+		@Override
+		long longAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			long[] array = new long[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class DoubleHistory extends HistoryBuffer {
+		private final double[] values;
+
+		DoubleHistory(int capacity) {
+			super(capacity);
+			values = new double[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Double) value).doubleValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			throw unsupported("ints");
+		}
+
+		@Override
+		long longAt(int index) {
+			throw unsupported("integers");
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			double[] array = new double[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class BooleanHistory extends HistoryBuffer {
+		private final boolean[] values;
+
+		BooleanHistory(int capacity) {
+			super(capacity);
+			values = new boolean[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Boolean) value).booleanValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			throw unsupported("ints");
+		}
+
+		@Override
+		long longAt(int index) {
+			throw unsupported("integers");
+		}
+
+		@Override
+		double doubleAt(int index) {
+			throw unsupported("numbers");
+		}
+
+		@Override
+		Object toArray() {
+			boolean[] array = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class ByteHistory extends HistoryBuffer {
+		private final byte[] values;
+
+		ByteHistory(int capacity) {
+			super(capacity);
+			values = new byte[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Byte) value).byteValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		long longAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			byte[] array = new byte[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class CharHistory extends HistoryBuffer {
+		private final char[] values;
+
+		CharHistory(int capacity) {
+			super(capacity);
+			values = new char[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Character) value).charValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		long longAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			char[] array = new char[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class ShortHistory extends HistoryBuffer {
+		private final short[] values;
+
+		ShortHistory(int capacity) {
+			super(capacity);
+			values = new short[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Short) value).shortValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		long longAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			short[] array = new short[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class FloatHistory extends HistoryBuffer {
+		private final float[] values;
+
+		FloatHistory(int capacity) {
+			super(capacity);
+			values = new float[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = ((Float) value).floatValue();
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			throw unsupported("ints");
+		}
+
+		@Override
+		long longAt(int index) {
+			throw unsupported("integers");
+		}
+
+		@Override
+		double doubleAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		Object toArray() {
+			float[] array = new float[size];
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	static class ObjectHistory extends HistoryBuffer {
+		private final Class<?> type;
+		private final Object[] values;
+
+		ObjectHistory(Class<?> type, int capacity) {
+			super(capacity);
+			this.type = type;
+			values = new Object[capacity];
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			values[index] = value;
+		}
+
+		@Override
+		Object valueAt(int index) {
+			return values[index];
+		}
+
+		@Override
+		int intAt(int index) {
+			throw unsupported("ints");
+		}
+
+		@Override
+		long longAt(int index) {
+			throw unsupported("integers");
+		}
+
+		@Override
+		double doubleAt(int index) {
+			throw unsupported("numbers");
+		}
+
+		@Override
+		Object toArray() {
+			// the checker expects an array of the variable's declared type
+			Object[] array = (Object[]) Array.newInstance(type, size);
+			for (int i = 0; i < size; i++) {
+				array[i] = values[indexOf(i)];
+			}
+			return array;
+		}
+	}
+
+	/**
+	 * A buffer of primitive values outside the heap, so that a long history
+	 * isn't scanned by the garbage collector, either in a direct buffer or in
+	 * a memory-mapped file.
+	 *
+	 * The values follow a header giving their type, the capacity and how many
+	 * have been appended, which is kept up to date after each append. When a
+	 * file is mapped again with the same type and capacity, in this run or a
+	 * later one, the history carries on from where it was; otherwise it
+	 * starts again. Files are locked while they are mapped, so two processes
+	 * can't share one.
+	 */
+	static class DirectHistory extends HistoryBuffer {
+
+		private static final int MAGIC = 0x53484831;
+
+		// magic, type, capacity, then the number of values appended
+		private static final int APPENDED = 12;
+		private static final int HEADER = 24;
+
+		// the type's descriptor, as in a class file, and how many bytes a value takes
+		private final char type;
+		private final int width;
+
+		private final ByteBuffer values;
+
+		// the mapped file, which is kept open so it stays locked
+		private final RandomAccessFile file;
+
+		private DirectHistory(char type, int capacity, ByteBuffer values, RandomAccessFile file) {
+			super(capacity);
+			this.type = type;
+			this.width = width(type);
+			this.values = values;
+			this.file = file;
+		}
+
+		/**
+		 * Creates a buffer for values of the given type in a new direct buffer.
+		 *
+		 * @throws IllegalArgumentException if the type isn't primitive, or the
+		 *             values wouldn't fit in a buffer
+		 */
+		static DirectHistory allocate(Class<?> type, int capacity) {
+			char descriptor = descriptor(type);
+			DirectHistory history = new DirectHistory(descriptor, capacity,
+				ByteBuffer.allocateDirect(bytes(type, descriptor, capacity)), null);
+			history.writeHeader();
+			return history;
+		}
+
+		/**
+		 * Maps a buffer for values of the given type from a file, carrying on
+		 * with the values that are already in it if they are of the same type
+		 * and there is room for as many.
+		 *
+		 * @throws IllegalArgumentException if the type isn't primitive, or the
+		 *             values wouldn't fit in a buffer
+		 * @throws IOException if the file can't be mapped, or another process
+		 *             has it
+		 */
+		static DirectHistory map(Class<?> type, int capacity, File path) throws IOException {
+			char descriptor = descriptor(type);
+			int bytes = bytes(type, descriptor, capacity);
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			try {
+				FileChannel channel = file.getChannel();
+				FileLock lock;
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException ex) {
+					throw new IOException(path + " is already mapped by another history", ex);
+				}
+				if (lock == null) {
+					throw new IOException(path + " is in use by another process");
+				}
+				DirectHistory history = new DirectHistory(descriptor, capacity,
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes), file);
+				ByteBuffer values = history.values;
+				if (values.getInt(0) == MAGIC && values.getInt(4) == descriptor && values.getInt(8) == capacity
+						&& values.getLong(APPENDED) >= 0) {
+					long appended = values.getLong(APPENDED);
+					history.appended = appended;
+					history.head = history.indexOfCount(appended);
+					history.size = (int) Math.min(appended, capacity);
+				} else {
+					history.writeHeader();
+				}
+				return history;
+			} catch (IOException ex) {
+				file.close();
+				throw ex;
+			} catch (RuntimeException ex) {
+				file.close();
+				throw ex;
+			}
+		}
+
+		private void writeHeader() {
+			values.putInt(0, MAGIC);
+			values.putInt(4, type);
+			values.putInt(8, capacity);
+			values.putLong(APPENDED, appended);
+		}
+
+		/**
+		 * @return whether the values are in a file
+		 */
+		boolean isMapped() {
+			return file != null;
+		}
+
+		/**
+		 * Closes the file the values are mapped from, releasing its lock so
+		 * it can be mapped again. The buffer mustn't be used afterwards.
+		 */
+		void close() throws IOException {
+			if (file != null) {
+				file.close();
+			}
+		}
+
+		@Override
+		void append(Object value) {
+			super.append(value);
+			values.putLong(APPENDED, appended);
+		}
+
+		@Override
+		protected void store(int index, Object value) {
+			int at = HEADER + index * width;
+			switch (type) {
+			case 'I': values.putInt(at, ((Integer) value).intValue()); break;
+			case 'J': values.putLong(at, ((Long) value).longValue()); break;
+			case 'D': values.putDouble(at, ((Double) value).doubleValue()); break;
+			case 'Z': values.put(at, ((Boolean) value).booleanValue() ? (byte) 1 : (byte) 0); break;
+			case 'B': values.put(at, ((Byte) value).byteValue()); break;
+			case 'C': values.putChar(at, ((Character) value).charValue()); break;
+			case 'S': values.putShort(at, ((Short) value).shortValue()); break;
+			default: values.putFloat(at, ((Float) value).floatValue()); break;
+			}
+		}
+
+		@Override
+		Object valueAt(int index) {
+			int at = HEADER + index * width;
+			switch (type) {
+			case 'I': return Integer.valueOf(values.getInt(at));
+			case 'J': return Long.valueOf(values.getLong(at));
+			case 'D': return Double.valueOf(values.getDouble(at));
+			case 'Z': return Boolean.valueOf(values.get(at) != 0);
+			case 'B': return Byte.valueOf(values.get(at));
+			case 'C': return Character.valueOf(values.getChar(at));
+			case 'S': return Short.valueOf(values.getShort(at));
+			default: return Float.valueOf(values.getFloat(at));
+			}
+		}
+
+		@Override
+		int intAt(int index) {
+			int at = HEADER + index * width;
+			switch (type) {
+			case 'I': return values.getInt(at);
+			case 'B': return values.get(at);
+			case 'C': return values.getChar(at);
+			case 'S': return values.getShort(at);
+			default: throw unsupported("ints");
+			}
+		}
+
+		@Override
+		long longAt(int index) {
+			switch (type) {
+			case 'J': return values.getLong(HEADER + index * width);
+			case 'I': case 'B': case 'C': case 'S': return intAt(index);
+			default: throw unsupported("integers");
+			}
+		}
+
+		@Override
+		double doubleAt(int index) {
+			switch (type) {
+			case 'D': return values.getDouble(HEADER + index * width);
+			case 'F': return values.getFloat(HEADER + index * width);
+			case 'Z': throw unsupported("numbers");
+			default: return longAt(index);
+			}
+		}
+
+		@Override
+		protected String describe() {
+			return (isMapped() ? "mapped" : "direct") + " history of " + primitive(type).getName() + " values";
+		}
+
+		@Override
+		Object toArray() {
+			if (type == 'I') {
+				int[] array = new int[size];
+				for (int i = 0; i < size; i++) {
+					array[i] = values.getInt(HEADER + indexOf(i) * width);
+				}
+				return array;
+			} else if (type == 'J') {
+				long[] array = new long[size];
+				for (int i = 0; i < size; i++) {
+					array[i] = values.getLong(HEADER + indexOf(i) * width);
+				}
+				return array;
+			} else if (type == 'D') {
+				double[] array = new double[size];
+				for (int i = 0; i < size; i++) {
+					array[i] = values.getDouble(HEADER + indexOf(i) * width);
+				}
+				return array;
+			}
+			Object array = Array.newInstance(primitive(type), size);
+			for (int i = 0; i < size; i++) {
+				Array.set(array, i, valueAt(indexOf(i)));
+			}
+			return array;
+		}
+
+		private static char descriptor(Class<?> type) {
+			if (type == Integer.TYPE) {
+				return 'I';
+			} else if (type == Long.TYPE) {
+				return 'J';
+			} else if (type == Double.TYPE) {
+				return 'D';
+			} else if (type == Boolean.TYPE) {
+				return 'Z';
+			} else if (type == Byte.TYPE) {
+				return 'B';
+			} else if (type == Character.TYPE) {
+				return 'C';
+			} else if (type == Short.TYPE) {
+				return 'S';
+			} else if (type == Float.TYPE) {
+				return 'F';
+			}
+			throw new IllegalArgumentException("Only histories of primitive values can be kept off the heap, not of "
+				+ type.getName());
+		}
+
+		private static Class<?> primitive(char descriptor) {
+			switch (descriptor) {
+			case 'I': return Integer.TYPE;
+			case 'J': return Long.TYPE;
+			case 'D': return Double.TYPE;
+			case 'Z': return Boolean.TYPE;
+			case 'B': return Byte.TYPE;
+			case 'C': return Character.TYPE;
+			case 'S': return Short.TYPE;
+			default: return Float.TYPE;
+			}
+		}
+
+		private static int width(char descriptor) {
+			switch (descriptor) {
+			case 'J': case 'D': return 8;
+			case 'I': case 'F': return 4;
+			case 'C': case 'S': return 2;
+			default: return 1;
+			}
+		}
+
+		private static int bytes(Class<?> type, char descriptor, int capacity) {
+			long bytes = HEADER + (long) capacity * width(descriptor);
+			if (bytes > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("A history of " + capacity + " " + type.getName()
+					+ " values is too long to keep off the heap");
+			}
+			return (int) bytes;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Array;
+
+/**
+ * The history of a requirement variable as of one call, read straight from
+ * the buffer the values are kept in instead of copied into an array.
+ *
+ * A checker gets one by declaring a parameter of this type bound to the
+ * variable's history, which is worth doing when the history is long enough
+ * that copying it for every call would cost more than the check:
+ *
+ * <pre>
+ * &#064;Checks("steady")
+ * public void checkSteady(&#064;ReqVar("reading[]") HistoryView readings) throws Throwable {
+ *     if (readings.size() == readings.getLength()
+ *             &amp;&amp; Math.abs(readings.getDouble(0) - readings.getDouble(readings.size() - 1)) &gt; DRIFT) {
+ *         throw new Exception("drifted by more than " + DRIFT);
+ *     }
+ * }
+ * </pre>
+ *
+ * Values are read by age, where 0 is the value of the call being checked, as
+ * in the history array. Since the buffer goes on being appended to by later
+ * calls, a value can be overwritten by the time the checker reads it if lots
+ * of calls are made at once; reading it then throws an IllegalStateException
+ * rather than giving a newer value. Each value is read under the same lock
+ * the calls append under, which is cheap when no call is appending at the
+ * time. A checker that runs after the call returns, because it is
+ * asynchronous or deferred, is given a view of a copy of the values instead,
+ * taken when the call returns; any that were overwritten by then are left
+ * out, so the view is smaller.
+ *
+ * With -Dshellac.history.store, primitive histories can be kept outside the
+ * heap, in a direct buffer or a memory-mapped file that carries over from one
+ * run to the next; see {@link ReqVarHistory}.
+ */
+public final class HistoryView {
+
+	private final String name;
+	private final Class<?> type;
+	private final HistoryBuffer buffer;
+
+	// how many values had been appended, and how many were in the buffer,
+	// as of the call
+	private final long count;
+	private final int size;
+
+	// for a detached view, a copy of the buffer's values, most recent first,
+	// and where the call's value is in it
+	private final Object values;
+	private final int offset;
+
+	HistoryView(String name, Class<?> type, HistoryBuffer buffer, long count, int size) {
+		this(name, type, buffer, count, size, null, 0);
+	}
+
+	private HistoryView(String name, Class<?> type, HistoryBuffer buffer, long count, int size, Object values,
+			int offset) {
+		this.name = name;
+		this.type = type;
+		this.buffer = buffer;
+		this.count = count;
+		this.size = size;
+		this.values = values;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return a view of a copy of the values this one covers, for a checker
+	 *         that runs after the call returns, leaving out any that have
+	 *         been overwritten already
+	 */
+	HistoryView detach() {
+		if (values != null) {
+			return this;
+		}
+		synchronized (buffer) {
+			// the buffer holds the values appended since the call too
+			long newer = buffer.appended - count;
+			int available = (int) Math.max(0, Math.min(size, buffer.size() - newer));
+			return new HistoryView(name, type, buffer, count, available, buffer.toArray(), available > 0 ? (int) newer : 0);
+		}
+	}
+
+	/**
+	 * @return how many values there are, which is less than the history's
+	 *         length until that many calls have been made
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return how many values the history keeps
+	 */
+	public int getLength() {
+		return buffer.capacity;
+	}
+
+	/**
+	 * @return how many values have ever been added to the history, including
+	 *         in earlier runs if it is kept in a file
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the variable's declared type
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * @return the value from the given number of calls ago, boxed if it is of
+	 *         a primitive type
+	 */
+	public Object get(int age) {
+		if (values != null) {
+			return Array.get(values, copyIndexOf(age));
+		}
+		int index = indexOf(age);
+		synchronized (buffer) {
+			checkAvailable(age);
+			return buffer.valueAt(index);
+		}
+	}
+
+	/**
+	 * @return the int, short, byte or char from the given number of calls ago
+	 */
+	public int getInt(int age) {
+		checkType(type == Integer.TYPE || type == Short.TYPE || type == Byte.TYPE || type == Character.TYPE, "ints");
+		if (values != null) {
+			return Array.getInt(values, copyIndexOf(age));
+		}
+		int index = indexOf(age);
+		synchronized (buffer) {
+			checkAvailable(age);
+			return buffer.intAt(index);
+		}
+	}
+
+	/**
+	 * @return the long, or any smaller integer, from the given number of
+	 *         calls ago
+	 */
+	public long getLong(int age) {
+		checkType(type == Long.TYPE || type == Integer.TYPE || type == Short.TYPE || type == Byte.TYPE
+			|| type == Character.TYPE, "integers");
+		if (values != null) {
+			return Array.getLong(values, copyIndexOf(age));
+		}
+		int index = indexOf(age);
+		synchronized (buffer) {
+			checkAvailable(age);
+			return buffer.longAt(index);
+		}
+	}
+
+	/**
+	 * @return the number, of any primitive type, from the given number of
+	 *         calls ago
+	 */
+	public double getDouble(int age) {
+		checkType(type.isPrimitive() && type != Boolean.TYPE, "numbers");
+		if (values != null) {
+			return Array.getDouble(values, copyIndexOf(age));
+		}
+		int index = indexOf(age);
+		synchronized (buffer) {
+			checkAvailable(age);
+			return buffer.doubleAt(index);
+		}
+	}
+
+	/**
+	 * @return whether the value from the given number of calls ago is still
+	 *         in the buffer, which it will be unless the checker is running
+	 *         well after the call
+	 */
+	public boolean isAvailable(int age) {
+		if (age < 0 || age >= size) {
+			return false;
+		} else if (values != null) {
+			return true;
+		}
+		synchronized (buffer) {
+			return buffer.isAvailable(count - 1 - age);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HistoryView[" + name + ", " + size + " of " + buffer.capacity + " values, " + count + " in all]";
+	}
+
+	private int indexOf(int age) {
+		checkAge(age);
+		return buffer.indexOfCount(count - 1 - age);
+	}
+
+	private int copyIndexOf(int age) {
+		checkAge(age);
+		return offset + age;
+	}
+
+	private void checkAge(int age) {
+		if (age < 0 || age >= size) {
+			throw new IndexOutOfBoundsException("There are " + size + " values in the history of " + name
+				+ ", not " + (age + 1));
+		}
+	}
+
+	// called with the buffer locked, so nothing can be appended before the value is read
+	private void checkAvailable(int age) {
+		if (!buffer.isAvailable(count - 1 - age)) {
+			throw new IllegalStateException("The value from " + age + " calls ago has been overwritten in the history of "
+				+ name + ", which only keeps " + buffer.capacity + " values");
+		}
+	}
+
+	private void checkType(boolean ok, String what) {
+		if (!ok) {
+			throw new UnsupportedOperationException("The history of " + name + " holds " + type.getName()
+				+ " values, not " + what);
+		}
+	}
+}
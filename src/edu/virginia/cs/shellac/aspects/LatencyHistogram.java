@@ -0,0 +1,75 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in power-of-two buckets of nanoseconds.
+ *
+ * Recording a time is two atomic additions and never allocates, and the
+ * buckets are precise enough to tell a 100ns checker from a 10us one.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+class LatencyHistogram {
+
+	// bucket b holds times t where 2^(b-1) <= t < 2^b, and bucket 0 holds 0
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+	private final StripedCounter totalNanos = new StripedCounter();
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet((64 - Long.numberOfLeadingZeros(nanos)) & 63);
+		totalNanos.add(nanos);
+	}
+
+	long getCount() {
+		long count = 0;
+		for (int b = 0; b < 64; b++) {
+			count += buckets.get(b);
+		}
+		return count;
+	}
+
+	long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	double getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getTotalNanos() / count;
+	}
+
+	/**
+	 * @param fraction the percentile wanted, e.g. 0.99
+	 * @return a time that the given fraction of the times were shorter than
+	 *         (or 0, if they were all 0), rounded up to a power of two
+	 */
+	long getPercentileNanos(double fraction) {
+		long[] counts = new long[64];
+		long count = 0;
+		for (int b = 0; b < 64; b++) {
+			counts[b] = buckets.get(b);
+			count += counts[b];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int b = 0; b < 64; b++) {
+			seen += counts[b];
+			if (seen >= rank) {
+				return b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : 1L << b;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return getCount() + " in " + getTotalNanos() + "ns (mean " + Math.round(getMeanNanos()) + "ns, p50 <"
+			+ getPercentileNanos(0.5) + "ns, p99 <" + getPercentileNanos(0.99) + "ns)";
+	}
+}
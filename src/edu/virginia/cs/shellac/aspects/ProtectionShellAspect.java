@@ -4,15 +4,8 @@
  */
 package edu.virginia.cs.shellac.aspects;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,361 +13,400 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 
-import edu.virginia.cs.shellac.annotations.Checks;
-import edu.virginia.cs.shellac.annotations.ReqVar;
 import edu.virginia.cs.shellac.annotations.Satisfies;
 
-// TODO: update this to use the KnowledgeBase
+// TODO: use more of the KnowledgeBase than the proofs it exports (see ShellProofs)
 @Aspect
 public class ProtectionShellAspect
 {
     private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
-    private static Map<String, Object> reqVarHistories = new HashMap<String, Object>();
     
     @Around("execution(* *(..)) && @annotation(satisfies)")
-    public Object invokeProtectionShell(Satisfies satisfies, ProceedingJoinPoint pjp) {
+    public Object invokeProtectionShell(Satisfies satisfies, ProceedingJoinPoint pjp) throws Throwable {
         
-        log.log(Level.INFO, "Invoking protection shells for: " + pjp.getSignature());
+        // get the compiled plan for the checked method
+        ShellSite site = ShellSite.forJoinPoint(pjp.getStaticPart(), pjp.getSourceLocation().getWithinType());
+        boolean metrics = ShellMetrics.isEnabled();
+        if (metrics) {
+            ShellMetrics.invocations.increment();
+        }
         
-        // this maps the requirement variable names to their values
-        // in the method being checked.
-        //
-        // It will be used to determine the correct arguments to the checker method
-        Map<String, Object> reqVars = new HashMap<String, Object>();
+        // if none of the theorems are switched on and sampled this time,
+        // there is nothing to capture or check, so just run the method
+        long sampled = site.sample();
+        if (sampled == 0) {
+            return proceed(pjp);
+        }
         
-        // get the requirements and the mappings for the checked method
-        Method checkedMethod = getMethod(pjp);
+        // none of the diagnostics allocate anything unless they are turned on
+        boolean debug = ShellDiagnostics.isDebugEnabled();
+        ShellTraceListener tracer = ShellDiagnostics.getTraceListener();
+        long entered = 0;
+        if (debug) {
+            ShellDiagnostics.debug("Invoking protection shells for: {0}", site);
+        }
+        if (tracer != null) {
+            entered = ShellDiagnostics.traceShellEntry(tracer, site.method);
+        }
+        
+        // this holds the values of the requirement variables in the method
+        // being checked, in the slots the plan assigned to them.
+        //
+        // It will be used to fill in the arguments to the checker methods.
+        // Only the variables some checker reads were kept in the site, and
+        // only the forms of them that are read get captured
+        long snapshotStarted = metrics ? System.nanoTime() : 0;
+        Object[] slots = new Object[site.slotCount];
+        Object target = pjp.getThis();
         
         // look for any isInstance ReqVars and copy their current values
-        ReqVar instanceReqVar = checkedMethod.getAnnotation(ReqVar.class);
-        if (instanceReqVar != null && instanceReqVar.isInstance()) {
-        	Object instanceVal = getInstanceValueCopy(pjp, instanceReqVar);
-            reqVars.put(instanceReqVar.value(), instanceVal);
-            if (instanceReqVar.history() > 0) {
-            	boolean isPrimitive = false;
-            	try {
-            		isPrimitive = pjp.getThis().getClass().getField(instanceReqVar.value()).getType().isPrimitive();
-            	} catch (NoSuchFieldException ex) {
-        			log.log(Level.SEVERE, "Cannot find instance field with name " + instanceReqVar.value() + " in "
-        					+ pjp.getThis().getClass(), ex);
-        			System.exit(1);            		
-            	}
-            	Object hist = updateHistory(instanceReqVar, instanceVal, pjp, isPrimitive);
-            	reqVars.put(instanceReqVar.value() + "[]", hist);
+        ShellSite.Capture instance = site.instanceCapture;
+        if (instance != null && (instance.valueRead || instance.history != null)) {
+            slots[instance.slot] = getInstanceValueCopy(target, instance);
+            if (instance.history != null) {
+                instance.recordHistory(slots, slots[instance.slot]);
             }
         }
 
         // store, and possibly copy, annotated parameters
-        Annotation[][] paramAnnotations = checkedMethod.getParameterAnnotations();
-        for (int param = 0; param < paramAnnotations.length; param++) {
-            for (Annotation annot : paramAnnotations[param]) {
-                if (annot instanceof ReqVar) {
-                    ReqVar reqVar = (ReqVar) annot;
-                    if (reqVar.isOutput()) {
-                        // copy of input
-                        reqVars.put(reqVar.value(), copy(pjp.getArgs()[param], checkedMethod.getParameterTypes()[param].isPrimitive()));
-                        
-                        // output (which may change value during proceed)
-                        reqVars.put(reqVar.value()+"'", pjp.getArgs()[param]);
-                    } else {
-                        reqVars.put(reqVar.value(), pjp.getArgs()[param]);
-                    }
-                    
-                    if (reqVar.history() > 0) {
-                    	Object hist = updateHistory(reqVar, pjp.getArgs()[param], pjp, checkedMethod.getParameterTypes()[param].isPrimitive());
-                    	reqVars.put(reqVar.value() + "[]", hist);
-                    }
+        ShellSite.Capture[] params = site.paramCaptures;
+        Object[] args = params.length > 0 ? pjp.getArgs() : null;
+        for (ShellSite.Capture param : params) {
+            Object value = args[param.param];
+            if (param.outputSlot >= 0) {
+                // copy of input
+                if (param.valueRead) {
+                    slots[param.slot] = copy(value, param.isPrimitive);
+                }
+                
+                // output (which may change value during proceed)
+                slots[param.outputSlot] = value;
+            } else {
+                slots[param.slot] = value;
+            }
+            if (param.deltaRead || param.chunksRead) {
+                int[] touched = new int[param.touches.length];
+                for (int i = 0; i < touched.length; i++) {
+                    touched[i] = ((Integer) args[param.touches[i]]).intValue();
                 }
+                if (param.deltaRead) {
+                    slots[param.deltaSlot] = ArrayDelta.begin(value, touched, param.deltaPool);
+                }
+                if (param.chunksRead) {
+                    slots[param.chunksSlot] = ChunkedSnapshot.begin(value, touched);
+                }
+            }
+            
+            if (param.history != null) {
+                param.recordHistory(slots, copy(value, param.isPrimitive));
             }
         }
         
-        // possibly copy the method's input if it is expected to change
-        
-        // invoke the method
-        Object retVal = null;
-        try {
-            retVal = pjp.proceed(pjp.getArgs());
-        } catch (Throwable t) {
-            // couldn't even run the method, so fail
-            log.log(Level.SEVERE, "Exception occurred while invoking " + pjp.getSignature(), t);
-            System.exit(1);
+        // invoke the method, timing it if anyone wants to know
+        boolean timed = metrics || ShellGovernor.isEnabled();
+        long proceedStarted = 0;
+        if (timed) {
+            proceedStarted = System.nanoTime();
+        }
+        Object retVal;
+        ShellScopes.Scope scope = null;
+        if (site.covering || ShellScopes.isDeferring()) {
+            // methods called from this one may not need their own checks, or
+            // may leave them until the outermost shell is done
+            scope = ShellScopes.current();
+            int pushed = scope.enter(site, sampled);
+            boolean completed = false;
+            try {
+                retVal = proceed(pjp);
+                completed = true;
+            } finally {
+                scope.exit(pushed);
+                if (!completed && !scope.isNested()) {
+                    // the checks deferred to this call are dropped along with its own
+                    scope.drain();
+                }
+            }
+        } else {
+            retVal = proceed(pjp);
+        }
+        long proceedEnded = 0;
+        if (timed) {
+            proceedEnded = System.nanoTime();
+        }
+        if (metrics) {
+            ShellMetrics.proceed.record(proceedEnded - proceedStarted);
+        }
+
+        // what the call changed in the output arrays
+        for (ShellSite.Capture param : params) {
+            if (param.deltaRead) {
+                slots[param.deltaSlot] = ArrayDelta.diff(slots[param.deltaSlot], args[param.param], param.deltaPool);
+            }
+            if (param.chunksRead && slots[param.chunksSlot] != null) {
+                ((ChunkedSnapshot) slots[param.chunksSlot]).end(args[param.param]);
+            }
+        }
+
+        // the instance variable may have changed during the call
+        if (instance != null && instance.outputRead) {
+            slots[instance.outputSlot] = getInstanceValueCopy(target, instance);
         }
 
         // the returned object might correspond to a requirement variable
-        ReqVar returnReqVar = checkedMethod.getAnnotation(ReqVar.class);
-        if (returnReqVar != null) {
-        	Object value = retVal;
-        	String name = returnReqVar.value();
-        	boolean isPrimitive = checkedMethod.getReturnType().isPrimitive();
-        	
-        	if (returnReqVar.isInstance()) {
-        		name = returnReqVar.value() + "'";
-        		value = getInstanceValueCopy(pjp, returnReqVar);
-        		try {
-        			isPrimitive = pjp.getThis().getClass().getField(returnReqVar.value()).getType().isPrimitive();
-        		} catch (NoSuchFieldException ex) {
-        			log.log(Level.SEVERE, "Cannot find instance field with name " + returnReqVar.value() + " in "
-        					+ pjp.getThis().getClass(), ex);
-        			System.exit(1);
-        		}
-        	} 
-        	
-        	reqVars.put(name, value);
-        	if (returnReqVar.history() > 0) {
-        		Object hist = updateHistory(returnReqVar, value, pjp, isPrimitive);
-        		reqVars.put(returnReqVar.value() + "[]", hist);
-        	}
+        ShellSite.Capture returned = site.returnCapture;
+        if (returned != null) {
+            slots[returned.slot] = retVal;
+            if (returned.history != null) {
+                returned.recordHistory(slots, copy(retVal, returned.isPrimitive));
+            }
         }
         
-
+        // deferred theorems inside another shell are checked once the
+        // outermost one is done, and the outermost one checks them
+        long deferred = 0;
+        List<ShellScopes.Deferred> batches = null;
+        if (scope != null) {
+            if (scope.isNested()) {
+                deferred = sampled & site.deferred;
+            } else {
+                batches = scope.drain();
+            }
+        }
+        long checked = sampled & ~deferred;
         
-        // get all the protection shells
-        // TODO: get all from the classpath in advance, not from the 
-        // same class during this method
-        for (String thm : satisfies.value()) {
-            int numChecks = 0;
-            for (Method checkerMethod : pjp.getSourceLocation().getWithinType().getMethods()) {
-                Checks checks = checkerMethod.getAnnotation(Checks.class);
-                if (checks != null && checks.value().equals(thm)) {
-                    Annotation[][] paramAnnots = checkerMethod.getParameterAnnotations();
-                    Object[] args = new Object[paramAnnots.length];
-                    for (int i = 0; i < paramAnnots.length; i++) {
-                        
-                        // ensure we have exactly one ReqVar per parameter
-                        boolean foundReqVar = false;
-                        for (Annotation annot : paramAnnots[i]) {
-                            if (annot instanceof ReqVar) {
-                                if (foundReqVar) {
-                                    log.log(Level.SEVERE, "Found multiple ReqVar annotations on parameter " + i + " for " + checkerMethod.toString());
-                                    System.exit(1);
-                                }
+        boolean async = AsyncChecks.isEnabled();
+        if (async || deferred != 0) {
+            // the caller is free to change anything it passed in once we
+            // return, so the checkers need their own copies of the parameters
+            // as they were when the call ended, not only of the outputs
+            // (immutable values aren't copied, and the inputs of isOutput
+            // parameters and the instance variable already are), and of
+            // the histories they read through views
+            for (ShellSite.Capture param : params) {
+                if (param.outputRead) {
+                    slots[param.outputSlot] = copy(slots[param.outputSlot], param.isPrimitive);
+                }
+                if (param.outputSlot < 0 && param.valueRead) {
+                    slots[param.slot] = copy(slots[param.slot], param.isPrimitive);
+                }
+                param.detachHistory(slots);
+            }
+            if (returned != null) {
+                if (returned.valueRead) {
+                    slots[returned.slot] = copy(retVal, returned.isPrimitive);
+                }
+                returned.detachHistory(slots);
+            }
+            if (instance != null) {
+                instance.detachHistory(slots);
+            }
+        }
+        if (metrics) {
+            ShellMetrics.snapshot.record(proceedStarted - snapshotStarted + System.nanoTime() - proceedEnded);
+        }
+        if (deferred != 0 && scope.defer(site, deferred, target, slots)) {
+            // rather than keep the copies of any more calls, check the ones
+            // that are waiting now
+            batches = scope.drain();
+        }
+        
+        // run the protection shells for each theorem
+        if (batches != null) {
+            for (ShellScopes.Deferred batch : batches) {
+                if (!async || !AsyncChecks.submit(new ShellChecks(batch.site, batch.theorems, batch.target, null,
+                        batch.calls, debug, tracer, entered, 0))) {
+                    runChecks(batch.site, batch.theorems, batch.target, null, batch.calls, debug, tracer, entered, 0, true);
+                }
+            }
+        }
+        if (checked != 0) {
+            // checks that the pool has no room for run here, as if async mode were off
+            if (!async || !AsyncChecks.submit(new ShellChecks(site, checked, target, slots, null, debug, tracer, entered,
+                    proceedEnded - proceedStarted))) {
+                runChecks(site, checked, target, slots, null, debug, tracer, entered, proceedEnded - proceedStarted, true);
+            }
+        }
+        
+        // return if everything is okay
+        return retVal;
+    }
 
-                                ReqVar reqVar = (ReqVar) annot;
-                                if (!reqVars.containsKey(reqVar.value())) {
-                                    log.log(Level.SEVERE, "Checker method needs requirement variable \"" + reqVar.value() + "\", but no such variable in checked method.");
-                                    System.exit(1);
-                                }
-                                
-                                args[i] = reqVars.get(reqVar.value());
-                                foundReqVar = true;
-                            }
-                        }
-                        
-                        if (!foundReqVar) {
-                            log.log(Level.SEVERE, "No ReqVar annotation on parameter " + i + " for " + checkerMethod.toString());
-                            System.exit(1);
+    /**
+     * Runs the checkers for each sampled theorem, handling any that fail as
+     * the theorem's violation policy says. The violations are only handled
+     * once every theorem has been checked and the outcome traced, since the
+     * policy may be to throw or exit.
+     * 
+     * @param slots the requirement variables of the call, or null if a batch
+     *        of deferred calls is being checked
+     * @param batch the slots of each of the deferred calls, or null
+     * @param inline whether the checks are running in the checked method, so
+     *        a violation can be thrown to its caller
+     * @param proceedNanos how long the checked method took, if it was timed
+     */
+    protected void runChecks(ShellSite site, long sampled, Object target, Object[] slots, List<Object[]> batch,
+            boolean debug, ShellTraceListener tracer, long entered, long proceedNanos, boolean inline) {
+        int totalChecks = 0;
+        Throwable failure = null;
+        List<ShellViolation> violations = null;
+        List<ShellViolations.Handler> handlers = null;
+        for (int thm = 0; thm < site.theorems.length; thm++) {
+            if (!ShellSite.isSampled(sampled, thm)) {
+                continue;
+            }
+            ShellSite.TheoremPlan theorem = site.theorems[thm];
+            TheoremMetrics metrics = theorem.metrics;
+            if (metrics != null) {
+                if (theorem.checkers.length == 0) {
+                    metrics.unchecked.increment();
+                } else {
+                    metrics.checked.increment();
+                }
+            }
+            ShellGovernor.Governor governor = theorem.governor;
+            boolean timed = metrics != null || governor != null;
+            int numChecks = 0;
+            long theoremNanos = 0;
+            boolean passed = true;
+            for (ShellSite.CheckerPlan checker : theorem.checkers) {
+                long started = 0;
+                if (debug) {
+                    ShellDiagnostics.debug("Invoking {0} to check \"{1}\"", checker.method, theorem.theorem);
+                }
+                if (tracer != null) {
+                    started = ShellDiagnostics.traceCheckerStart(tracer, site.method, theorem.theorem, checker.method);
+                }
+                Throwable checkFailure = null;
+                long checkerStarted = timed ? System.nanoTime() : 0;
+                try {
+                    if (batch == null) {
+                        checker.invoker.invoke(target, checker.arguments(slots));
+                    } else if (checker.batch) {
+                        checker.invoker.invoke(target, checker.arguments(batch));
+                    } else {
+                        for (Object[] call : batch) {
+                            checker.invoker.invoke(target, checker.arguments(call));
                         }
                     }
-                    
-                    try {
-                        log.log(Level.INFO, "Invoking " + checkerMethod + " to check \"" + thm + "\"");
-                        checkerMethod.invoke(pjp.getThis(), args);
-                        numChecks++;
-                    } catch (Throwable t) {
-                        log.log(Level.SEVERE, "Check failed!", t);
-                        System.exit(0);
+                } catch (Throwable t) {
+                    checkFailure = t;
+                }
+                long checkerNanos = timed ? System.nanoTime() - checkerStarted : 0;
+                theoremNanos += checkerNanos;
+                if (metrics != null) {
+                    checker.time.record(checkerNanos);
+                    metrics.checkerRuns.increment();
+                    if (checkFailure != null) {
+                        metrics.failures.increment();
+                    }
+                }
+                numChecks++;
+                if (tracer != null) {
+                    ShellDiagnostics.traceCheckerEnd(tracer, site.method, theorem.theorem, checker.method, started, checkFailure);
+                }
+                if (checkFailure != null) {
+                    if (failure == null) {
+                        failure = checkFailure;
+                        violations = new ArrayList<ShellViolation>(1);
+                        handlers = new ArrayList<ShellViolations.Handler>(1);
                     }
+                    passed = false;
+                    violations.add(new ShellViolation(site.method, theorem.theorem, checker.method, checkFailure));
+                    handlers.add(theorem.violations);
                 }
             }
+            if (passed) {
+                theorem.violations.passed();
+            }
+            if (metrics != null && numChecks > 0) {
+                metrics.checkerTime.record(theoremNanos);
+            }
+            if (governor != null && numChecks > 0 && batch == null) {
+                governor.checked(theoremNanos, proceedNanos);
+            }
             
-            if (numChecks == 0) {
-                log.log(Level.INFO, "No checks available for \"" + thm + "\". Make sure to prove this statically.");
+            if (debug) {
+                ShellDiagnostics.debug("Ran {0} checks for \"{1}\"", numChecks, theorem.theorem);
             }
-            log.log(Level.INFO, "Ran " + numChecks + " checks for \"" + thm + "\"");
+            totalChecks += numChecks;
         }
         
-        
-        // return if everything is okay
-        return retVal;
+        if (tracer != null) {
+            ShellDiagnostics.traceOutcome(tracer, site.method, entered, totalChecks, failure);
+        }
+        if (violations != null) {
+            for (int i = 0; i < violations.size(); i++) {
+                ShellViolations.violated(violations.get(i), handlers.get(i), inline);
+            }
+        }
     }
 
     /**
-     * Updates the history for the given requirements variable.
-     *
-     * @return the updated history object
+     * The checks for a single call, or a batch of deferred ones, to be run on
+     * a checker thread
      */
-    protected Object updateHistory(ReqVar reqVar, Object value, 
-    		ProceedingJoinPoint pjp, boolean isPrimitive) {
-    	Object hist = null;
-    	if (reqVarHistories.containsKey(reqVar.value())) {
-    		hist = reqVarHistories.get(reqVar.value());
-	    	int currentLen = Array.getLength(hist);
-	    	
-	    	// possibly grow the array
-	    	Object newHist = hist;
-	    	if (currentLen < reqVar.history()) {
-	    		newHist = Array.newInstance(hist.getClass().getComponentType(), currentLen + 1);
-	    		currentLen++;
-	    	}
-	    	
-	    	// shift the array
-	    	for (int i = currentLen - 1; i > 0; i--) {
-	    		Array.set(newHist, i, Array.get(hist, i-1));
-	    	}
-	    	
-	    	hist = newHist;
-    	} else {
-    		// start it at a length of 1, and we'll increase until it is at reqVar.history()
-    		// this is a good way of easily telling if we haven't made history number of calls yet
-    		if (isPrimitive) {
-    			if (value.getClass().isAssignableFrom(Boolean.class))
-    				hist = Array.newInstance(Boolean.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Byte.class))
-    				hist = Array.newInstance(Byte.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Character.class))
-    				hist = Array.newInstance(Character.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Short.class))
-    				hist = Array.newInstance(Short.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Integer.class))
-    				hist = Array.newInstance(Integer.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Long.class))
-    				hist = Array.newInstance(Long.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Float.class))
-    				hist = Array.newInstance(Float.TYPE, 1);
-    			else if (value.getClass().isAssignableFrom(Double.class))
-    				hist = Array.newInstance(Double.TYPE, 1);
-    			else {
-    				log.log(Level.SEVERE, value.getClass() + " is not assignable from any primitive types!");
-    				System.exit(1);
-    			}
-    		} else {
-    			hist = Array.newInstance(value.getClass(), 1);
-    		}
-    	}
-    	
-    	
-    	// add a copy of the current value to the array
-    	Array.set(hist, 0, copy(value, isPrimitive));
+    private class ShellChecks implements Runnable {
+        private final ShellSite site;
+        private final long sampled;
+        private final Object target;
+        private final Object[] slots;
+        private final List<Object[]> batch;
+        private final boolean debug;
+        private final ShellTraceListener tracer;
+        private final long entered;
+        private final long proceedNanos;
+
+        ShellChecks(ShellSite site, long sampled, Object target, Object[] slots, List<Object[]> batch,
+                boolean debug, ShellTraceListener tracer, long entered, long proceedNanos) {
+            this.site = site;
+            this.sampled = sampled;
+            this.target = target;
+            this.slots = slots;
+            this.batch = batch;
+            this.debug = debug;
+            this.tracer = tracer;
+            this.entered = entered;
+            this.proceedNanos = proceedNanos;
+        }
+
+        public void run() {
+            runChecks(site, sampled, target, slots, batch, debug, tracer, entered, proceedNanos, false);
+        }
+    }
 
-    	// update our copy of the history
-		reqVarHistories.put(reqVar.value(), hist);
-		
-		return hist;
-	}
+    /**
+     * Runs the checked method with its original arguments. Anything the
+     * method throws goes to its caller, as if there were no shell.
+     */
+    protected Object proceed(ProceedingJoinPoint pjp) throws Throwable {
+        return pjp.proceed();
+    }
 
 	/**
-     * Makes a deep copy of the given element
+     * Makes a deep copy of the given element, using the copier
+     * that {@link SnapshotCopiers} has for its class
      */
     protected Object copy(Object value, boolean isPrimitive) {
     	if (value == null || isPrimitive) {
     		return value;
-    	} else if (value.getClass().isArray()) {
-    		int len = Array.getLength(value);
-    		Object copy = Array.newInstance(value.getClass().getComponentType(), Array.getLength(value));
-    		for (int i = 0; i < len; i++) {
-    			Array.set(copy, i, copy(Array.get(value, i), value.getClass().getComponentType().isPrimitive()));
-    		}
-    		return copy;
-    	} else {
-    		// the object had better have a copy constructor!
-    		Constructor<?> constructor = null;
-    		
-    		try {
-				constructor = value.getClass().getConstructor(value.getClass());
-			} catch (SecurityException e) {
-				log.log(Level.SEVERE, "Unable to get constructor of class " + value.getClass(), e);
-				System.exit(1);
-			} catch (NoSuchMethodException e) {
-				log.log(Level.SEVERE, value.getClass() + " must have a copy constructor in order to use it!", e);
-				System.exit(1);
-			}
-
-			try {
-				return constructor.newInstance(value);
-			} catch (Exception e) {
-				log.log(Level.SEVERE, value.getClass() + " must have a copy constructor in order to use it!", e);
-				System.exit(1);
-			}
-			
-			return null; // stub to keep compiler happy
-			
     	}
+    	return SnapshotCopiers.copy(value);
     }
     
     /**
-     * helper method to get the method that the proceeding join point matches
-     */
-    protected Method getMethod(ProceedingJoinPoint pjp) {
-        List<Method> possibleMethods = new ArrayList<Method>();
-        
-        Object[] args = pjp.getArgs();
-        Class<?> targetClass = pjp.getSourceLocation().getWithinType();
-        
-        for (Method m : targetClass.getMethods()) {
-            if (m.getName().equals(pjp.getSignature().getName())) {
-                Class<?>[] paramTypes = m.getParameterTypes();
-                if (paramTypes.length != args.length)
-                    continue;
-                
-                boolean paramsMatch = true;
-                for (int i = 0; i < paramTypes.length && paramsMatch; i++) {
-                    
-                    // special case for primitive args, since aspectJ presents
-                    // them all as objects
-                    if (paramTypes[i].isPrimitive()) {
-                        Class<?> argClass = args[i].getClass();
-                        if (paramTypes[i] == Boolean.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Boolean.class);
-                        } else if (paramTypes[i] == Character.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Character.class);
-                        } else if (paramTypes[i] == Byte.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Byte.class);
-                        } else if (paramTypes[i] == Short.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Short.class);
-                        } else if (paramTypes[i] == Integer.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Integer.class);
-                        } else if (paramTypes[i] == Long.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Long.class);
-                        } else if (paramTypes[i] == Float.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Float.class);
-                        } else if (paramTypes[i] == Double.TYPE) {
-                            paramsMatch = argClass.isAssignableFrom(Double.class);                            
-                        } else {
-                            paramsMatch = false;
-                        }
-                    } else {
-                        if (!args[i].getClass().equals(paramTypes[i]))
-                            paramsMatch = false;
-                    }
-                }
-                
-                if (paramsMatch) {
-                    possibleMethods.add(m);
-                }
-            }
-        }
-        
-        if (possibleMethods.size() == 0) {
-            log.log(Level.SEVERE, "Could not find method for: " + pjp.getSignature());
-            System.exit(1);
-        } else if (possibleMethods.size() > 1) {
-            log.log(Level.SEVERE, "Found too many methods for: " + pjp.getSignature());
-            System.exit(1);            
-        }
-        
-        return possibleMethods.get(0);
-    }
-    
-    /**
-     * gets a copy of the current value of an instance variable represented by the given reqvar
-     * the reqvar should have isInstance() == true
-     * @param pjp
-     * @param reqVarName
+     * gets a copy of the current value of an instance variable of the target
+     * @param target the object whose method is being checked
+     * @param instance the isInstance ReqVar, with the field it was resolved to
      * @return
      */
-    protected Object getInstanceValueCopy(ProceedingJoinPoint pjp, ReqVar reqvar) {
-    	String name = reqvar.value();
-		String getter = "get"+Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    protected Object getInstanceValueCopy(Object target, ShellSite.Capture instance) {
 		try {
-			Field field = pjp.getThis().getClass().getField(name);
-			boolean isPrimitive = field.getType().isPrimitive();
-			return copy(field.get(pjp.getThis()), isPrimitive);
-		} catch (Exception ex) {
-			log.log(Level.SEVERE, "To use instance variable ReqVar annotations, you must provide a getter "
-					+ "for that instance variable. An error occurred trying to invoke the getter " + getter, ex);
-			System.exit(1);
-			return null; // make the compiler happy
+			return copy(instance.field.get(target), instance.isPrimitive);
+		} catch (IllegalAccessException ex) {
+			// can't happen, since the field was made accessible
+			log.log(Level.SEVERE, "Unable to read instance variable " + instance.field, ex);
+			return null;
 		}
     }
     
-}
+}
\ No newline at end of file
@@ -0,0 +1,168 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The previous values of a requirement variable with a history, as seen
+ * by the checkers through the "name[]" variable.
+ *
+ * The checkers see the values as an array of the variable's declared type,
+ * with the most recent value first. The array starts with a length of 1
+ * and grows until it reaches the history length, which is an easy way for
+ * a checker to tell that fewer calls than that have been made so far.
+ *
+ * The values themselves are kept in a {@link HistoryBuffer}, so recording
+ * a call is O(1) no matter how long the history is. Histories are only
+ * kept for variables that some checker reads, and only copied into an
+ * array for checkers that take one; a checker can take a
+ * {@link HistoryView} instead, which reads the buffer in place.
+ *
+ * Where the buffer is kept is set by the shellac.history.store property,
+ * in the same format as the other options (a store for every variable,
+ * and/or variable=store): on the heap (the default), in a direct buffer
+ * outside the heap, or mapped from a file in shellac.history.dir, named
+ * after the variable, which survives restarts. Only primitive histories
+ * can be kept outside the heap; the others, and any that can't be mapped,
+ * are logged and kept on the heap.
+ *
+ * Histories can be updated from any number of threads. Each variable's
+ * history has its own lock, which is only held for the append and the
+ * copy into a new array, so different variables never
+ * contend. An array is never changed once a checker has been given it, so
+ * each checker sees a consistent snapshot even while other calls go on.
+ */
+class ReqVarHistory {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	static final String HEAP = "heap";
+	static final String DIRECT = "direct";
+	static final String MAPPED = "mapped";
+
+	// where the histories are kept, by variable name, and for the rest
+	private static final Map<String, String> stores = new HashMap<String, String>();
+	private static String defaultStore = HEAP;
+
+	private static final File directory = new File(System.getProperty("shellac.history.dir",
+		new File(System.getProperty("java.io.tmpdir"), "shellac").getPath()));
+
+	static {
+		String spec = System.getProperty("shellac.history.store");
+		if (spec != null) {
+			for (String entry : spec.split(",")) {
+				entry = entry.trim();
+				if (entry.length() == 0) {
+					continue;
+				}
+				int eq = entry.indexOf('=');
+				String store = (eq < 0 ? entry : entry.substring(eq + 1)).trim().toLowerCase();
+				if (!store.equals(HEAP) && !store.equals(DIRECT) && !store.equals(MAPPED)) {
+					log.log(Level.WARNING, "Ignoring history store \"" + entry + "\", expected heap, direct or mapped");
+				} else if (eq < 0) {
+					defaultStore = store;
+				} else {
+					stores.put(entry.substring(0, eq).trim(), store);
+				}
+			}
+		}
+	}
+
+	// histories are shared by name, so requirement variable names must be unique
+	private static final ConcurrentMap<String, ReqVarHistory> histories =
+		new ConcurrentHashMap<String, ReqVarHistory>();
+
+	private final String name;
+	private final Class<?> type;
+	private final HistoryBuffer buffer;
+
+	private ReqVarHistory(String name, Class<?> type, int length) {
+		this.name = name;
+		this.type = type;
+		this.buffer = createBuffer(name, type, length);
+	}
+
+	private static HistoryBuffer createBuffer(String name, Class<?> type, int length) {
+		String store = stores.containsKey(name) ? stores.get(name) : defaultStore;
+		if (store.equals(HEAP)) {
+			return HistoryBuffer.create(type, length);
+		}
+		if (!type.isPrimitive()) {
+			log.log(Level.INFO, "Keeping the history of " + name + " on the heap, since it holds "
+				+ type.getName() + " values");
+			return HistoryBuffer.create(type, length);
+		}
+		try {
+			if (store.equals(MAPPED)) {
+				directory.mkdirs();
+				File file = new File(directory, fileName(name));
+				HistoryBuffer buffer = HistoryBuffer.DirectHistory.map(type, length, file);
+				log.log(Level.FINE, "Mapped the history of " + name + " from " + file + ", with " + buffer.size()
+					+ " values already in it");
+				return buffer;
+			}
+			return HistoryBuffer.DirectHistory.allocate(type, length);
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Unable to map the history of " + name + ", so it will be kept on the heap", ex);
+		} catch (IllegalArgumentException ex) {
+			log.log(Level.WARNING, ex.getMessage() + ", so the history of " + name + " will be kept on the heap");
+		}
+		return HistoryBuffer.create(type, length);
+	}
+
+	/**
+	 * @return the name of the file the variable's history is mapped from: the
+	 *         variable's name, with anything that might not be allowed in a
+	 *         file name replaced, and the hash of the whole name, so that
+	 *         names that only differ in what was replaced, or in case, don't
+	 *         share a file
+	 */
+	static String fileName(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(name.hashCode()) + ".history";
+	}
+
+	/**
+	 * Gets the history for the given requirement variable, creating it if this
+	 * is the first time it has been asked for.
+	 *
+	 * @param type the declared type of the variable
+	 * @param length how many values to keep
+	 */
+	static ReqVarHistory forName(String name, Class<?> type, int length) {
+		ReqVarHistory history = histories.get(name);
+		if (history == null) {
+			ReqVarHistory created = new ReqVarHistory(name, type, length);
+			history = histories.putIfAbsent(name, created);
+			if (history == null) {
+				history = created;
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Adds a value to the history, and fills in the history including that
+	 * value, as an array, a view, or both.
+	 *
+	 * @param arraySlot the slot for the updated history, most recent value
+	 *            first, which will not be changed by later updates, or -1
+	 * @param viewSlot the slot for a {@link HistoryView} of it, or -1
+	 */
+	void update(Object value, Object[] slots, int arraySlot, int viewSlot) {
+		synchronized (buffer) {
+			buffer.append(value);
+			if (arraySlot >= 0) {
+				slots[arraySlot] = buffer.toArray();
+			}
+			if (viewSlot >= 0) {
+				slots[viewSlot] = new HistoryView(name, type, buffer, buffer.appended, buffer.size());
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging and tracing for the protection shells.
+ *
+ * The per-call messages are logged at FINE, with parameters instead of
+ * concatenated strings, and the shell checks {@link #isDebugEnabled()} before
+ * passing them in, so nothing is built for a message nobody will see.
+ *
+ * Tracing reports each step of each shell as a {@link ShellTraceEvent}. It
+ * is off unless a listener is set, or the shellac.trace system property is
+ * true, in which case the events are logged to the
+ * "edu.virginia.cs.shellac.trace" logger. When it is off the shell only
+ * reads a single field to find that out.
+ */
+public final class ShellDiagnostics {
+
+	private static final Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	// the listener for trace events, or null if tracing is off
+	private static volatile ShellTraceListener traceListener;
+
+	static {
+		if (Boolean.getBoolean("shellac.trace")) {
+			traceListener = new LoggingTraceListener();
+		}
+	}
+
+	private ShellDiagnostics() {}
+
+	/**
+	 * Turns tracing on, sending the events to the given listener, or turns
+	 * it off if the listener is null.
+	 */
+	public static void setTraceListener(ShellTraceListener listener) {
+		traceListener = listener;
+	}
+
+	/**
+	 * @return the current trace listener, or null if tracing is off
+	 */
+	public static ShellTraceListener getTraceListener() {
+		return traceListener;
+	}
+
+	static boolean isDebugEnabled() {
+		return log.isLoggable(Level.FINE);
+	}
+
+	static void debug(String msg, Object param) {
+		log.log(Level.FINE, msg, param);
+	}
+
+	static void debug(String msg, Object param1, Object param2) {
+		log.log(Level.FINE, msg, new Object[] {param1, param2});
+	}
+
+	/**
+	 * @return the time the shell was entered, to be passed to {@link #traceOutcome}
+	 */
+	static long traceShellEntry(ShellTraceListener tracer, Method checkedMethod) {
+		long now = System.nanoTime();
+		tracer.traced(new ShellTraceEvent(ShellTraceEvent.Kind.SHELL_ENTRY, checkedMethod,
+			null, null, now, 0, 0, null));
+		return now;
+	}
+
+	/**
+	 * @return the time the checker was started, to be passed to {@link #traceCheckerEnd}
+	 */
+	static long traceCheckerStart(ShellTraceListener tracer, Method checkedMethod, String theorem, Method checker) {
+		long now = System.nanoTime();
+		tracer.traced(new ShellTraceEvent(ShellTraceEvent.Kind.CHECKER_START, checkedMethod,
+			theorem, checker, now, 0, 0, null));
+		return now;
+	}
+
+	static void traceCheckerEnd(ShellTraceListener tracer, Method checkedMethod, String theorem, Method checker,
+			long started, Throwable failure) {
+		long now = System.nanoTime();
+		tracer.traced(new ShellTraceEvent(ShellTraceEvent.Kind.CHECKER_END, checkedMethod,
+			theorem, checker, now, now - started, 0, failure));
+	}
+
+	static void traceOutcome(ShellTraceListener tracer, Method checkedMethod, long entered,
+			int checksRun, Throwable failure) {
+		long now = System.nanoTime();
+		tracer.traced(new ShellTraceEvent(ShellTraceEvent.Kind.OUTCOME, checkedMethod,
+			null, null, now, now - entered, checksRun, failure));
+	}
+
+	/**
+	 * The listener used when tracing is turned on through the shellac.trace
+	 * system property.
+	 */
+	static class LoggingTraceListener implements ShellTraceListener {
+		private static final Logger traceLog = Logger.getLogger("edu.virginia.cs.shellac.trace");
+
+		public void traced(ShellTraceEvent event) {
+			traceLog.log(event.isFailure() ? Level.WARNING : Level.INFO, event.toString());
+		}
+	}
+}
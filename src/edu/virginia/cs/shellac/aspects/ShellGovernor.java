@@ -0,0 +1,212 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the cost of each theorem's checkers within a share of the time
+ * spent in the methods it checks, by changing how often it is sampled.
+ *
+ * Turned on with -Dshellac.budget=5, which allows each theorem's checkers
+ * 5% of the time of the checked methods. After every few checked calls, the
+ * governor compares how long the theorem's checkers took with how long the
+ * checked method took, and sets the theorem's sampling rate (see
+ * {@link ShellSampling}) so that on average the checkers stay within
+ * budget. When the checkers get cheaper, or the methods slower, the rate
+ * goes back up again.
+ *
+ * A theorem is never checked less often than its floor, which is set with
+ * shellac.budget.floor in the same format as shellac.sample, where a rate
+ * on its own sets the floor for every other theorem. The default floor is
+ * 1/1000. For example, to always check the tokeneer transitions and check
+ * everything else at least once every 100 calls:
+ *
+ * <pre>-Dshellac.budget=5 -Dshellac.budget.floor=1/100,quiescent_to_gotUserToken=always</pre>
+ *
+ * A theorem is also never checked more often than shellac.sample or
+ * {@link ShellSampling#setRate(String, int)} says, even if that is less
+ * often than the floor.
+ */
+public final class ShellGovernor {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	// how many checked calls the costs are averaged over before adjusting the rate
+	private static final int WINDOW = 64;
+
+	private static final double budget = parseBudget(System.getProperty("shellac.budget"));
+
+	private static final ConcurrentMap<String, Governor> governors = new ConcurrentHashMap<String, Governor>();
+
+	private static volatile int defaultFloor = 1000;
+
+	static {
+		configureFloors(System.getProperty("shellac.budget.floor"));
+	}
+
+	private ShellGovernor() {}
+
+	/**
+	 * @return whether the governor is adjusting the sampling rates
+	 */
+	public static boolean isEnabled() {
+		return budget > 0;
+	}
+
+	/**
+	 * @return the share of the checked methods' time each theorem's checkers
+	 *         are allowed, e.g. 0.05, or 0 if the governor is off
+	 */
+	public static double getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Makes sure the given theorem is checked on at least one out of every
+	 * {@code every} calls.
+	 *
+	 * @param every the floor, or {@link ShellSampling#ALWAYS} to never throttle the theorem
+	 */
+	public static void setFloor(String theorem, int every) {
+		if (every < 1) {
+			throw new IllegalArgumentException("floor for \"" + theorem + "\" must be at least 1, not " + every);
+		}
+		forTheorem(theorem).floor = every;
+	}
+
+	/**
+	 * @return the floor for the given theorem, as the most calls there can be
+	 *         between checks
+	 */
+	public static int getFloor(String theorem) {
+		return forTheorem(theorem).getFloor();
+	}
+
+	/**
+	 * Sets the floors from a string in the same format as the
+	 * shellac.budget.floor system property. Malformed entries are logged and
+	 * skipped.
+	 */
+	public static void configureFloors(String spec) {
+		if (spec == null) {
+			return;
+		}
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int eq = entry.lastIndexOf('=');
+			try {
+				if (eq < 0) {
+					int every = ShellSampling.parseRate(entry);
+					if (every < 1) {
+						throw new IllegalArgumentException("floor must be at least 1");
+					}
+					defaultFloor = every;
+				} else if (eq == 0) {
+					log.log(Level.WARNING, "Ignoring floor \"" + entry + "\", expected theorem=rate");
+				} else {
+					setFloor(entry.substring(0, eq).trim(), ShellSampling.parseRate(entry.substring(eq + 1).trim()));
+				}
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Ignoring floor \"" + entry + "\": " + ex.getMessage());
+			}
+		}
+	}
+
+	private static double parseBudget(String percent) {
+		if (percent == null) {
+			return 0;
+		}
+		try {
+			double budget = Double.parseDouble(percent.trim().replace("%", "")) / 100;
+			if (budget > 0) {
+				return budget;
+			}
+		} catch (NumberFormatException ex) {
+			// fall through to the warning
+			log.log(Level.FINE, "shellac.budget isn't a number", ex);
+		}
+		log.log(Level.WARNING, "Ignoring shellac.budget=" + percent + ", expected a percentage greater than 0");
+		return 0;
+	}
+
+	/**
+	 * Gets the governor for the given theorem. Plans hold on to it, so floors
+	 * that are changed later still take effect.
+	 */
+	static Governor forTheorem(String theorem) {
+		Governor governor = governors.get(theorem);
+		if (governor == null) {
+			Governor created = new Governor(theorem);
+			governor = governors.putIfAbsent(theorem, created);
+			if (governor == null) {
+				governor = created;
+			}
+		}
+		return governor;
+	}
+
+	/**
+	 * Tracks what one theorem's checks cost, and sets its sampling rate.
+	 */
+	static class Governor {
+		private final String theorem;
+		private final ShellSampling.Sampler sampler;
+
+		// 0 to use the default floor
+		volatile int floor;
+
+		private final AtomicInteger calls = new AtomicInteger();
+		private final AtomicLong checkerNanos = new AtomicLong();
+		private final AtomicLong proceedNanos = new AtomicLong();
+
+		Governor(String theorem) {
+			this.theorem = theorem;
+			this.sampler = ShellSampling.forTheorem(theorem);
+		}
+
+		int getFloor() {
+			int f = floor;
+			return f > 0 ? f : defaultFloor;
+		}
+
+		/**
+		 * Records the cost of one checked call, and adjusts the sampling
+		 * rate at the end of each window.
+		 */
+		void checked(long checkerTime, long proceedTime) {
+			checkerNanos.addAndGet(checkerTime);
+			proceedNanos.addAndGet(proceedTime);
+			if (calls.incrementAndGet() == WINDOW) {
+				// only one thread gets here per window; the others keep adding
+				// to the next one, which is close enough
+				long checker = checkerNanos.getAndSet(0);
+				long proceed = proceedNanos.getAndSet(0);
+				calls.set(0);
+				adjust(checker, proceed);
+			}
+		}
+
+		private void adjust(long checker, long proceed) {
+			// checking one in every n calls costs checker / n for every proceed
+			double wanted = checker / (budget * Math.max(proceed, 1));
+			int every = wanted >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.ceil(wanted);
+			// the floor only limits the governor; a rate set with shellac.sample
+			// that is lower than the floor still wins
+			every = Math.min(every, getFloor());
+			every = Math.max(ShellSampling.ALWAYS, Math.max(every, sampler.configured));
+			if (every != sampler.every) {
+				if (ShellDiagnostics.isDebugEnabled()) {
+					ShellDiagnostics.debug("Sampling \"{0}\" once every {1} calls to keep it within budget", theorem, every);
+				}
+				sampler.every = every;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * What the protection shells cost, exposed through JMX.
+ *
+ * Turned on with -Dshellac.metrics=true. The shells then count the calls,
+ * checker runs and failures for each theorem, and time how long is spent
+ * copying requirement variables, in the checked methods themselves, and in
+ * each checker. Counters are striped and histograms use fixed buckets, so
+ * recording a call neither contends nor allocates. When metrics are off,
+ * none of this is done at all.
+ *
+ * The totals are registered as the edu.virginia.cs.shellac:type=Shells
+ * MBean when the first shell runs, and each theorem is registered as
+ * edu.virginia.cs.shellac:type=Theorem,name="theorem" the first time a
+ * method that satisfies it is called.
+ */
+public final class ShellMetrics implements ShellMetricsMBean {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	public static final String DOMAIN = "edu.virginia.cs.shellac";
+
+	private static final boolean enabled = Boolean.getBoolean("shellac.metrics");
+
+	static final StripedCounter invocations = new StripedCounter();
+
+	// the time spent capturing and copying requirement variables for one call
+	static final LatencyHistogram snapshot = new LatencyHistogram();
+
+	static final LatencyHistogram proceed = new LatencyHistogram();
+
+	private static final ConcurrentMap<String, TheoremMetrics> theorems = new ConcurrentHashMap<String, TheoremMetrics>();
+
+	static {
+		if (enabled) {
+			register(new ShellMetrics(), DOMAIN + ":type=Shells");
+		}
+	}
+
+	private ShellMetrics() {}
+
+	/**
+	 * @return whether the shells are recording metrics
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets the metrics for the given theorem, registering its MBean if this
+	 * is the first time it has been asked for.
+	 */
+	static TheoremMetrics forTheorem(String theorem) {
+		TheoremMetrics metrics = theorems.get(theorem);
+		if (metrics == null) {
+			TheoremMetrics created = new TheoremMetrics(theorem);
+			metrics = theorems.putIfAbsent(theorem, created);
+			if (metrics == null) {
+				metrics = created;
+				register(metrics, DOMAIN + ":type=Theorem,name=" + ObjectName.quote(theorem));
+			}
+		}
+		return metrics;
+	}
+
+	private static void register(Object mbean, String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Unable to register " + name + ", so its metrics won't be available through JMX", ex);
+		}
+	}
+
+	public long getShellInvocations() {
+		return invocations.sum();
+	}
+
+	public long getCheckerRuns() {
+		long runs = 0;
+		for (TheoremMetrics metrics : theorems.values()) {
+			runs += metrics.getCheckerRuns();
+		}
+		return runs;
+	}
+
+	public long getFailures() {
+		long failures = 0;
+		for (TheoremMetrics metrics : theorems.values()) {
+			failures += metrics.getFailures();
+		}
+		return failures;
+	}
+
+	public long getUncheckedTheorems() {
+		long unchecked = 0;
+		for (TheoremMetrics metrics : theorems.values()) {
+			unchecked += metrics.getUnchecked();
+		}
+		return unchecked;
+	}
+
+	public double getSnapshotMeanNanos() {
+		return snapshot.getMeanNanos();
+	}
+
+	public long getSnapshotP99Nanos() {
+		return snapshot.getPercentileNanos(0.99);
+	}
+
+	public double getProceedMeanNanos() {
+		return proceed.getMeanNanos();
+	}
+
+	public long getProceedP99Nanos() {
+		return proceed.getPercentileNanos(0.99);
+	}
+
+	public String[] getTheoremsByCheckerTime() {
+		List<TheoremMetrics> sorted = new ArrayList<TheoremMetrics>(theorems.values());
+		final Map<TheoremMetrics, Long> totals = new HashMap<TheoremMetrics, Long>();
+		for (TheoremMetrics metrics : sorted) {
+			totals.put(metrics, metrics.getTotalCheckerNanos());
+		}
+		Collections.sort(sorted, new Comparator<TheoremMetrics>() {
+			public int compare(TheoremMetrics a, TheoremMetrics b) {
+				long diff = totals.get(b).longValue() - totals.get(a).longValue();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+		String[] lines = new String[sorted.size()];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = sorted.get(i).toString();
+		}
+		return lines;
+	}
+}
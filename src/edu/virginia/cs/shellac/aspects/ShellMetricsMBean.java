@@ -0,0 +1,44 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * The metrics for all the protection shells, registered as
+ * edu.virginia.cs.shellac:type=Shells. Times are in nanoseconds.
+ *
+ * @see ShellMetrics
+ */
+public interface ShellMetricsMBean {
+
+	/**
+	 * @return how many times a checked method has been called
+	 */
+	long getShellInvocations();
+
+	/**
+	 * @return how many times a checker has been run, for any theorem
+	 */
+	long getCheckerRuns();
+
+	/**
+	 * @return how many times a checker has failed, for any theorem
+	 */
+	long getFailures();
+
+	/**
+	 * @return how many times a theorem with no checkers would have been checked
+	 */
+	long getUncheckedTheorems();
+
+	double getSnapshotMeanNanos();
+
+	long getSnapshotP99Nanos();
+
+	double getProceedMeanNanos();
+
+	long getProceedP99Nanos();
+
+	/**
+	 * @return a line for each theorem, the ones that have spent the most
+	 *         time in their checkers first
+	 */
+	String[] getTheoremsByCheckerTime();
+}
@@ -0,0 +1,131 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.virginia.cs.shellac.annotations.Asserts;
+
+/**
+ * Which theorems don't need to be checked at runtime, because they have
+ * been proven.
+ *
+ * A method's theorem is proven if the method is annotated with
+ * {@link Asserts} for it, or if it is listed in a META-INF/shellac.proven
+ * manifest on the method's classpath. Each line of a manifest is either a
+ * theorem, which is then proven for every method, or a method's class, name
+ * and erased parameter types followed by a theorem, so that proving it for
+ * one overload doesn't prove it for the others:
+ *
+ * <pre>
+ * # proven with the KnowledgeBase
+ * edu.virginia.cs.shellac.examples.Sorter.sort(int[]) sortedOrder
+ * </pre>
+ *
+ * The plugin writes this manifest for the proofs that have been marked
+ * complete. Proven theorems are left out of a method's plan altogether, so
+ * they cost nothing; a method whose theorems are all proven just runs.
+ *
+ * Running with -Dshellac.proofs=false checks every theorem anyway.
+ */
+public final class ShellProofs {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	public static final String MANIFEST = "META-INF/shellac.proven";
+
+	private static final boolean enabled = !"false".equalsIgnoreCase(System.getProperty("shellac.proofs"));
+
+	// the proven entries from the manifests each class loader can see
+	private static final Map<ClassLoader, Set<String>> manifests =
+		Collections.synchronizedMap(new WeakHashMap<ClassLoader, Set<String>>());
+
+	private ShellProofs() {}
+
+	/**
+	 * @return whether the given method's theorem has been proven, so it
+	 *         doesn't need to be checked
+	 */
+	public static boolean isProven(Method method, String theorem) {
+		if (!enabled) {
+			return false;
+		}
+		Asserts asserts = method.getAnnotation(Asserts.class);
+		if (asserts != null && Arrays.asList(asserts.value()).contains(theorem)) {
+			return true;
+		}
+		Set<String> proven = forClassLoader(method.getDeclaringClass().getClassLoader());
+		return proven.contains(theorem) || proven.contains(key(method, theorem));
+	}
+
+	/**
+	 * @param signature the method's name and erased parameter types, in the
+	 *        form of {@link CheckerInvokers#signature(Method)}, like
+	 *        "sort(int[])"
+	 * @return the manifest line that proves the given theorem for a method
+	 *         of the given class
+	 */
+	public static String key(String className, String signature, String theorem) {
+		return className + "." + signature + " " + theorem;
+	}
+
+	private static String key(Method method, String theorem) {
+		return key(method.getDeclaringClass().getName(), CheckerInvokers.signature(method), theorem);
+	}
+
+	private static Set<String> forClassLoader(ClassLoader loader) {
+		if (loader == null) {
+			loader = ClassLoader.getSystemClassLoader();
+		}
+		synchronized (manifests) {
+			Set<String> proven = manifests.get(loader);
+			if (proven == null) {
+				proven = load(loader);
+				manifests.put(loader, proven);
+			}
+			return proven;
+		}
+	}
+
+	private static Set<String> load(ClassLoader loader) {
+		Set<String> proven = new HashSet<String>();
+		try {
+			Enumeration<URL> resources = loader.getResources(MANIFEST);
+			while (resources.hasMoreElements()) {
+				URL url = resources.nextElement();
+				BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						int comment = line.indexOf('#');
+						if (comment >= 0) {
+							line = line.substring(0, comment);
+						}
+						// normalise the whitespace between the method and the theorem
+						line = line.trim().replaceAll("\\s+", " ");
+						if (line.length() > 0) {
+							proven.add(line);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Unable to read " + MANIFEST + ", so every theorem will be checked", ex);
+			return Collections.emptySet();
+		}
+		return proven;
+	}
+}
@@ -0,0 +1,146 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-theorem sampling rates for the dynamic checks.
+ *
+ * By default every theorem is checked on every call. A theorem can instead
+ * be checked on roughly one out of every N calls, either by calling
+ * {@link #setRate(String, int)} or through the shellac.sample system
+ * property, which is a comma separated list of theorem=rate pairs, where
+ * the rate is either "always" or "1/N". For example:
+ *
+ * <pre>-Dshellac.sample=sortedOrder=1/1000,quiescent_to_gotUserToken=always</pre>
+ *
+ * When none of the theorems of a method are sampled for a call, the shell
+ * just proceeds with the call, without copying any requirement variables or
+ * recording any history.
+ */
+public final class ShellSampling {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	public static final int ALWAYS = 1;
+
+	private static final ConcurrentMap<String, Sampler> samplers = new ConcurrentHashMap<String, Sampler>();
+
+	// xorshift state for each thread, so deciding whether to sample doesn't contend
+	private static final ThreadLocal<int[]> seeds = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			int seed = (int) (System.nanoTime() ^ Thread.currentThread().getId() * 0x9E3779B9L);
+			return new int[] { seed == 0 ? 1 : seed };
+		}
+	};
+
+	static {
+		configure(System.getProperty("shellac.sample"));
+	}
+
+	private ShellSampling() {}
+
+	/**
+	 * Checks the given theorem on roughly one out of every {@code every} calls.
+	 *
+	 * @param every how often to check the theorem, or {@link #ALWAYS}
+	 */
+	public static void setRate(String theorem, int every) {
+		if (every < 1) {
+			throw new IllegalArgumentException("sampling rate for \"" + theorem + "\" must be at least 1, not " + every);
+		}
+		Sampler sampler = forTheorem(theorem);
+		sampler.configured = every;
+		sampler.every = every;
+	}
+
+	/**
+	 * @return how often the given theorem is checked, where 1 is every call.
+	 *         This may be less often than the rate that was set, if the
+	 *         {@link ShellGovernor} has throttled the theorem.
+	 */
+	public static int getRate(String theorem) {
+		return forTheorem(theorem).every;
+	}
+
+	/**
+	 * Sets the sampling rates from a string in the same format as the
+	 * shellac.sample system property. Malformed entries are logged and skipped.
+	 */
+	public static void configure(String spec) {
+		if (spec == null) {
+			return;
+		}
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int eq = entry.lastIndexOf('=');
+			if (eq <= 0) {
+				log.log(Level.WARNING, "Ignoring sampling rate \"" + entry + "\", expected theorem=rate");
+				continue;
+			}
+			String theorem = entry.substring(0, eq).trim();
+			String rate = entry.substring(eq + 1).trim();
+			try {
+				setRate(theorem, parseRate(rate));
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Ignoring sampling rate \"" + entry + "\": " + ex.getMessage());
+			}
+		}
+	}
+
+	static int parseRate(String rate) {
+		if (rate.equalsIgnoreCase("always")) {
+			return ALWAYS;
+		}
+		if (rate.startsWith("1/")) {
+			return Integer.parseInt(rate.substring(2).trim());
+		}
+		throw new IllegalArgumentException("rate must be \"always\" or \"1/N\"");
+	}
+
+	/**
+	 * Gets the sampler for the given theorem. Plans hold on to the sampler,
+	 * so rates that are changed later still take effect.
+	 */
+	static Sampler forTheorem(String theorem) {
+		Sampler sampler = samplers.get(theorem);
+		if (sampler == null) {
+			Sampler created = new Sampler();
+			sampler = samplers.putIfAbsent(theorem, created);
+			if (sampler == null) {
+				sampler = created;
+			}
+		}
+		return sampler;
+	}
+
+	/**
+	 * Decides whether a single theorem is checked on a given call.
+	 */
+	static class Sampler {
+		volatile int every = ALWAYS;
+
+		// the rate that was set, which the governor never samples more often than
+		volatile int configured = ALWAYS;
+
+		boolean sample() {
+			int n = every;
+			if (n <= ALWAYS) {
+				return true;
+			}
+			int[] seed = seeds.get();
+			int x = seed[0];
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			seed[0] = x;
+			return (x & 0x7fffffff) % n == 0;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Skips the checks of methods called from inside a method whose own checks
+ * already cover them.
+ *
+ * For example, Sorter.sort calls swap over and over, and checking every
+ * swap copies the whole array twice. If sort's checks are trusted to catch
+ * a bad swap, then with
+ *
+ * <pre>-Dshellac.covers=sortedOrder&gt;swap</pre>
+ *
+ * swap is only checked when it is called from outside a checked sort, so
+ * the cost of the shells follows the number of sorts, not the number of
+ * swaps. Each entry is outer&gt;inner, where inner may be * to cover every
+ * theorem, and the entries are separated by commas.
+ *
+ * The shells keep a stack of the covering theorems that are being checked
+ * on each thread, which is only pushed to by methods that satisfy a
+ * covering theorem, and only when that theorem is sampled for the call: an
+ * outer method that isn't being checked doesn't cover anything. Coverage is
+ * worked out when a method is first called, so it should be configured
+ * before then.
+ *
+ * Checks can also be deferred instead of skipped. With
+ *
+ * <pre>-Dshellac.defer=swap</pre>
+ *
+ * a swap called inside another checked method is still checked, but not
+ * until the outermost checked method returns, when all of the swaps it made
+ * are checked together. A checker declared with
+ * {@link edu.virginia.cs.shellac.annotations.Checks#batch()} is called once
+ * for all of them, on each target object, and other checkers are called
+ * once per swap. Deferred calls have the arguments their checkers read
+ * copied, since the methods around them may go on changing them. So that
+ * the copies don't pile up, once -Dshellac.defer.limit calls (64 by
+ * default) are waiting on a thread, they are checked straight away, at the
+ * end of the call that reached the limit. If the outermost method throws,
+ * the checks deferred to it are dropped, just like its own.
+ */
+public final class ShellScopes {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	public static final String ALL = "*";
+
+	// inner theorem (or ALL) -> the outer theorems that cover it
+	private static final ConcurrentMap<String, Set<String>> coveredBy = new ConcurrentHashMap<String, Set<String>>();
+
+	// the theorems that cover anything at all
+	private static final Set<String> covering = new CopyOnWriteArraySet<String>();
+
+	private static final Set<String> deferred = new CopyOnWriteArraySet<String>();
+
+	// how many deferred calls can be waiting on a thread before they are checked anyway
+	private static final int DEFER_LIMIT = Math.max(1, Integer.getInteger("shellac.defer.limit", 64));
+
+	// whether any theorem is deferred, in which case every shell keeps track
+	// of how deeply it is nested
+	private static volatile boolean deferring;
+
+	private static final ThreadLocal<Scope> scopes = new ThreadLocal<Scope>() {
+		@Override
+		protected Scope initialValue() {
+			return new Scope();
+		}
+	};
+
+	static {
+		configure(System.getProperty("shellac.covers"));
+		String defer = System.getProperty("shellac.defer");
+		if (defer != null) {
+			for (String theorem : defer.split(",")) {
+				if (theorem.trim().length() > 0) {
+					defer(theorem.trim());
+				}
+			}
+		}
+	}
+
+	private ShellScopes() {}
+
+	/**
+	 * Says that while a method satisfying the outer theorem is being
+	 * checked, methods it calls don't need to be checked for the inner one.
+	 *
+	 * @param inner the covered theorem, or {@link #ALL}
+	 */
+	public static void cover(String outer, String inner) {
+		Set<String> outers = coveredBy.get(inner);
+		if (outers == null) {
+			Set<String> created = new CopyOnWriteArraySet<String>();
+			outers = coveredBy.putIfAbsent(inner, created);
+			if (outers == null) {
+				outers = created;
+			}
+		}
+		outers.add(outer);
+		covering.add(outer);
+	}
+
+	/**
+	 * Sets what covers what from a string in the same format as the
+	 * shellac.covers system property. Malformed entries are logged and
+	 * skipped.
+	 */
+	public static void configure(String spec) {
+		if (spec == null) {
+			return;
+		}
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int gt = entry.indexOf('>');
+			if (gt <= 0 || gt == entry.length() - 1) {
+				log.log(Level.WARNING, "Ignoring cover \"" + entry + "\", expected outer>inner");
+				continue;
+			}
+			cover(entry.substring(0, gt).trim(), entry.substring(gt + 1).trim());
+		}
+	}
+
+	/**
+	 * Checks the given theorem at the end of the outermost checked method,
+	 * when it is satisfied by a method called from inside another one.
+	 */
+	public static void defer(String theorem) {
+		deferred.add(theorem);
+		deferring = true;
+	}
+
+	static boolean isDeferred(String theorem) {
+		return deferred.contains(theorem);
+	}
+
+	/**
+	 * @return whether any theorem is deferred, so the shells need to know
+	 *         which is the outermost
+	 */
+	static boolean isDeferring() {
+		return deferring;
+	}
+
+	/**
+	 * @return the theorems that cover the given one, or null if nothing does
+	 */
+	static String[] coveredBy(String theorem) {
+		Set<String> outers = coveredBy.get(theorem);
+		Set<String> all = coveredBy.get(ALL);
+		if (outers == null && all == null) {
+			return null;
+		}
+		Set<String> merged = new LinkedHashSet<String>();
+		if (outers != null) {
+			merged.addAll(outers);
+		}
+		if (all != null) {
+			merged.addAll(all);
+		}
+		// a theorem doesn't cover itself, or recursive methods would never be checked
+		merged.remove(theorem);
+		return merged.isEmpty() ? null : merged.toArray(new String[merged.size()]);
+	}
+
+	/**
+	 * @return whether the given theorem covers any others
+	 */
+	static boolean covers(String theorem) {
+		return covering.contains(theorem);
+	}
+
+	/**
+	 * @return the covering theorems being checked on the current thread
+	 */
+	static Scope current() {
+		return scopes.get();
+	}
+
+	/**
+	 * The covering theorems being checked on one thread, innermost last, and
+	 * the checks deferred to the end of the outermost shell.
+	 */
+	static class Scope {
+		private String[] stack = new String[8];
+		private int depth;
+
+		// how many shells are running on this thread
+		private int shells;
+
+		private final List<Deferred> pending = new ArrayList<Deferred>();
+		private int pendingCalls;
+
+		/**
+		 * Pushes the sampled theorems of the site that cover others.
+		 *
+		 * @return how many theorems were pushed, to be passed to {@link #exit}
+		 */
+		int enter(ShellSite site, long sampled) {
+			shells++;
+			int pushed = 0;
+			for (int t = 0; t < site.theorems.length; t++) {
+				ShellSite.TheoremPlan theorem = site.theorems[t];
+				if (theorem.covering && ShellSite.isSampled(sampled, t)) {
+					if (depth == stack.length) {
+						String[] grown = new String[depth * 2];
+						System.arraycopy(stack, 0, grown, 0, depth);
+						stack = grown;
+					}
+					stack[depth++] = theorem.theorem;
+					pushed++;
+				}
+			}
+			return pushed;
+		}
+
+		void exit(int pushed) {
+			shells--;
+			while (pushed-- > 0) {
+				stack[--depth] = null;
+			}
+		}
+
+		/**
+		 * @return whether a shell is running further up the stack, once the
+		 *         current one has exited
+		 */
+		boolean isNested() {
+			return shells > 0;
+		}
+
+		/**
+		 * Adds a call's checks for the given theorems to those waiting for
+		 * the outermost shell, with the checks of earlier calls on the same
+		 * target.
+		 *
+		 * @return whether as many calls are waiting as there can be, so they
+		 *         should be drained and checked now
+		 */
+		boolean defer(ShellSite site, long theorems, Object target, Object[] slots) {
+			pendingCalls++;
+			for (int i = 0; i < pending.size(); i++) {
+				Deferred waiting = pending.get(i);
+				if (waiting.site == site && waiting.theorems == theorems && waiting.target == target) {
+					waiting.calls.add(slots);
+					return pendingCalls >= DEFER_LIMIT;
+				}
+			}
+			pending.add(new Deferred(site, theorems, target, slots));
+			return pendingCalls >= DEFER_LIMIT;
+		}
+
+		/**
+		 * @return the deferred checks, or null if there aren't any, which are
+		 *         no longer pending
+		 */
+		List<Deferred> drain() {
+			if (pending.isEmpty()) {
+				return null;
+			}
+			List<Deferred> drained = new ArrayList<Deferred>(pending);
+			pending.clear();
+			pendingCalls = 0;
+			return drained;
+		}
+
+		/**
+		 * @return whether any of the given theorems is being checked
+		 */
+		boolean isCovered(String[] outers) {
+			for (int i = depth - 1; i >= 0; i--) {
+				for (String outer : outers) {
+					if (outer.equals(stack[i])) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The deferred checks of one method's calls on one target.
+	 */
+	static class Deferred {
+		final ShellSite site;
+		final long theorems;
+		final Object target;
+
+		// the slots of each call, in the order the calls were made
+		final List<Object[]> calls = new ArrayList<Object[]>();
+
+		Deferred(ShellSite site, long theorems, Object target, Object[] slots) {
+			this.site = site;
+			this.theorems = theorems;
+			this.target = target;
+			calls.add(slots);
+		}
+	}
+}
@@ -0,0 +1,616 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+
+import edu.virginia.cs.shellac.annotations.Checks;
+import edu.virginia.cs.shellac.annotations.ReqVar;
+import edu.virginia.cs.shellac.annotations.Satisfies;
+
+/**
+ * Everything the protection shell needs to know about a checked method
+ * that does not change from one call to the next, compiled into a plan
+ * the first time the method is called.
+ *
+ * Each requirement variable the method provides ("name", "name'" and
+ * "name[]") is given a fixed slot in a small array. A call fills in the
+ * slots, and each checker is invoked with the slots its parameters were
+ * mapped to, so no names are looked up while the method is running.
+ * Variables that none of the checkers read are never captured, copied or
+ * added to a history at all.
+ *
+ * Sites are cached by the join point's static part, which AspectJ creates
+ * once per advised method and which compares by identity, so after the
+ * first call finding the site is a single map hit.
+ */
+class ShellSite {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	// what is added to an output variable's name for the slots with its
+	// ArrayDelta and its ChunkedSnapshot
+	private static final String DELTA_SUFFIX = "#delta";
+	private static final String CHUNKS_SUFFIX = "#chunks";
+	private static final String VIEW_SUFFIX = "#view";
+
+	private static final ConcurrentMap<JoinPoint.StaticPart, ShellSite> sites =
+		new ConcurrentHashMap<JoinPoint.StaticPart, ShellSite>();
+
+	final Method method;
+
+	// the number of slots a call needs
+	final int slotCount;
+
+	// isInstance ReqVar on the method, or null if there isn't one that a checker reads
+	final Capture instanceCapture;
+
+	// one per annotated parameter that a checker reads
+	final Capture[] paramCaptures;
+
+	// method-level ReqVar for the return value, or null if there isn't one that a checker reads
+	final Capture returnCapture;
+
+	// one per theorem in the method's @Satisfies that hasn't been proven, in
+	// the order they were declared
+	final TheoremPlan[] theorems;
+
+	// whether any of the theorems cover the checks of the methods this one calls
+	final boolean covering;
+
+	// bit t is set if theorems[t] is checked at the end of an enclosing call
+	final long deferred;
+
+	/**
+	 * Where the values of a single requirement variable go.
+	 */
+	static class Capture {
+		final String name;
+		final int param;
+		final Class<?> type;
+		final boolean isPrimitive;
+
+		// the value before the call (a copy, if it may change)
+		int slot = -1;
+		boolean valueRead;
+
+		// the value after the call, for isOutput and isInstance variables
+		int outputSlot = -1;
+		boolean outputRead;
+
+		// what an isOutput array parameter's call changed, as an ArrayDelta,
+		// and the buffer its elements are copied into when the call starts
+		int deltaSlot = -1;
+		boolean deltaRead;
+		final AtomicReference<Object> deltaPool = new AtomicReference<Object>();
+
+		// what an isOutput array parameter's call changed, as a
+		// ChunkedSnapshot, and the parameters holding the indices it touches,
+		// which the ArrayDelta only copies the chunks of too
+		int chunksSlot = -1;
+		boolean chunksRead;
+		int[] touches = new int[0];
+
+		// the history, or null if no checker reads it, as an array and as a
+		// HistoryView
+		int historySlot = -1;
+		int viewSlot = -1;
+		boolean historyRead;
+		boolean viewRead;
+		int historyLength;
+		ReqVarHistory history;
+
+		// the field an isInstance variable is read from, or null for the others
+		Field field;
+
+		Capture(String name, int param, Class<?> type) {
+			this.name = name;
+			this.param = param;
+			this.type = type;
+			this.isPrimitive = type.isPrimitive();
+		}
+
+		/**
+		 * Adds the value to this variable's history, and fills in the history slot.
+		 */
+		void recordHistory(Object[] slots, Object value) {
+			history.update(value, slots, historyRead ? historySlot : -1, viewRead ? viewSlot : -1);
+		}
+
+		/**
+		 * Swaps the HistoryView for one of a copy of its values, for checkers
+		 * that run after the call returns, by when later calls could have
+		 * overwritten them.
+		 */
+		void detachHistory(Object[] slots) {
+			if (viewRead && slots[viewSlot] != null) {
+				slots[viewSlot] = ((HistoryView) slots[viewSlot]).detach();
+			}
+		}
+
+		/**
+		 * Works out which of this variable's forms the checkers actually
+		 * read, so the shell can skip capturing the rest.
+		 *
+		 * @return whether the checkers read any of them
+		 */
+		boolean link(boolean[] read) {
+			valueRead = read[slot];
+			outputRead = outputSlot >= 0 && read[outputSlot];
+			deltaRead = deltaSlot >= 0 && read[deltaSlot];
+			chunksRead = chunksSlot >= 0 && read[chunksSlot];
+			historyRead = historySlot >= 0 && read[historySlot];
+			viewRead = viewSlot >= 0 && read[viewSlot];
+			if (historyRead || viewRead) {
+				history = ReqVarHistory.forName(name, type, historyLength);
+			}
+			return valueRead || outputRead || deltaRead || chunksRead || history != null;
+		}
+	}
+
+	/**
+	 * The checkers to run for one theorem the method satisfies.
+	 */
+	static class TheoremPlan {
+		final String theorem;
+		final CheckerPlan[] checkers;
+		final ShellSwitches.Switch enabled;
+		final ShellSampling.Sampler sampler;
+		final ShellViolations.Handler violations;
+
+		// null unless metrics are turned on
+		final TheoremMetrics metrics;
+
+		// null unless the governor is turned on
+		final ShellGovernor.Governor governor;
+
+		// the theorems that cover this one when they are being checked
+		// further up the stack, or null if none do
+		final String[] coveredBy;
+
+		// whether this theorem covers others
+		final boolean covering;
+
+		TheoremPlan(String theorem, CheckerPlan[] checkers) {
+			this.theorem = theorem;
+			this.checkers = checkers;
+			this.enabled = ShellSwitches.forTheorem(theorem);
+			this.sampler = ShellSampling.forTheorem(theorem);
+			this.violations = ShellViolations.forTheorem(theorem);
+			this.metrics = ShellMetrics.isEnabled() ? ShellMetrics.forTheorem(theorem) : null;
+			this.governor = ShellGovernor.isEnabled() ? ShellGovernor.forTheorem(theorem) : null;
+			this.coveredBy = ShellScopes.coveredBy(theorem);
+			this.covering = ShellScopes.covers(theorem);
+			if (metrics != null) {
+				for (CheckerPlan checker : checkers) {
+					checker.time = metrics.forChecker(checker.method);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A checker, and the slot that each of its parameters is filled from.
+	 */
+	static class CheckerPlan {
+		final Method method;
+		final CheckerInvoker invoker;
+		final int[] argSlots;
+
+		// whether the checker takes a list of each variable's values
+		final boolean batch;
+
+		// null unless metrics are turned on
+		LatencyHistogram time;
+
+		CheckerPlan(Method method, int[] argSlots) {
+			this.method = method;
+			this.invoker = CheckerInvokers.link(method);
+			this.argSlots = argSlots;
+			this.batch = method.getAnnotation(Checks.class).batch();
+		}
+
+		/**
+		 * A checker that can't be called for this method. Each call fails
+		 * with the given problem, so it is handled like any other violation.
+		 */
+		CheckerPlan(Method method, final RuntimeException problem) {
+			this.method = method;
+			this.invoker = new CheckerInvoker() {
+				public void invoke(Object target, Object[] args) throws Throwable {
+					throw problem;
+				}
+			};
+			this.argSlots = new int[0];
+			this.batch = false;
+		}
+
+		/**
+		 * @return the arguments for this checker, taken from the given slots,
+		 *         which are lists of one value if it is a batch checker
+		 */
+		Object[] arguments(Object[] slots) {
+			Object[] args = new Object[argSlots.length];
+			for (int i = 0; i < argSlots.length; i++) {
+				args[i] = batch ? Collections.singletonList(slots[argSlots[i]]) : slots[argSlots[i]];
+			}
+			return args;
+		}
+
+		/**
+		 * @return the arguments for this batch checker, with a list for each
+		 *         parameter of the values from each call's slots
+		 */
+		Object[] arguments(List<Object[]> calls) {
+			Object[] args = new Object[argSlots.length];
+			for (int i = 0; i < argSlots.length; i++) {
+				List<Object> values = new ArrayList<Object>(calls.size());
+				for (Object[] slots : calls) {
+					values.add(slots[argSlots[i]]);
+				}
+				args[i] = values;
+			}
+			return args;
+		}
+	}
+
+	private ShellSite(Method method, Class<?> withinType) {
+		this.method = method;
+
+		// requirement variable name -> slot
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+
+		// look for any isInstance ReqVars, and otherwise a return ReqVar
+		ReqVar methodReqVar = method.getAnnotation(ReqVar.class);
+		Capture instance = null;
+		Capture returned = null;
+		Field field = null;
+		if (methodReqVar != null && methodReqVar.isInstance()) {
+			field = getInstanceField(method.getDeclaringClass(), methodReqVar.value());
+		}
+		if (field != null) {
+			instance = new Capture(methodReqVar.value(), -1, field.getType());
+			instance.field = field;
+			instance.slot = addSlot(slots, methodReqVar.value());
+			instance.outputSlot = addSlot(slots, methodReqVar.value() + "'");
+			addHistory(slots, instance, methodReqVar);
+		}
+
+		// annotated parameters
+		Class<?>[] paramTypes = method.getParameterTypes();
+		Annotation[][] paramAnnotations = method.getParameterAnnotations();
+		List<Capture> params = new ArrayList<Capture>();
+		for (int param = 0; param < paramAnnotations.length; param++) {
+			for (Annotation annot : paramAnnotations[param]) {
+				if (annot instanceof ReqVar) {
+					ReqVar reqVar = (ReqVar) annot;
+					Capture capture = new Capture(reqVar.value(), param, paramTypes[param]);
+					capture.slot = addSlot(slots, reqVar.value());
+					if (reqVar.isOutput()) {
+						capture.outputSlot = addSlot(slots, reqVar.value() + "'");
+						if (paramTypes[param].isArray()) {
+							capture.deltaSlot = addSlot(slots, reqVar.value() + "'" + DELTA_SUFFIX);
+							capture.chunksSlot = addSlot(slots, reqVar.value() + "'" + CHUNKS_SUFFIX);
+						}
+					}
+					addHistory(slots, capture, reqVar);
+					params.add(capture);
+				}
+			}
+		}
+
+		// the indices each output array is meant to change
+		for (Capture capture : params) {
+			ReqVar reqVar = getReqVar(paramAnnotations[capture.param]);
+			if (capture.chunksSlot >= 0 && reqVar.touches().length > 0) {
+				capture.touches = getTouchedParams(reqVar, params, paramTypes);
+			}
+		}
+
+		if (methodReqVar != null && !methodReqVar.isInstance()) {
+			returned = new Capture(methodReqVar.value(), -1, method.getReturnType());
+			returned.slot = addSlot(slots, methodReqVar.value());
+			addHistory(slots, returned, methodReqVar);
+		}
+
+		this.slotCount = slots.size();
+
+		// map each checker's parameters onto the slots
+		CheckerRegistry registry = CheckerRegistry.forClass(withinType);
+		CheckerIndex index = CheckerIndex.forClassLoader(withinType.getClassLoader());
+		List<String> satisfied = new ArrayList<String>();
+		for (String theorem : method.getAnnotation(Satisfies.class).value()) {
+			if (ShellProofs.isProven(method, theorem)) {
+				log.log(Level.INFO, "Not checking \"" + theorem + "\" in " + method + ", since it has been proven.");
+			} else {
+				satisfied.add(theorem);
+			}
+		}
+		this.theorems = new TheoremPlan[satisfied.size()];
+		boolean covering = false;
+		long deferred = 0;
+		for (int t = 0; t < theorems.length; t++) {
+			List<Method> checkerMethods = findCheckers(registry, index, withinType, satisfied.get(t));
+			CheckerPlan[] checkers = new CheckerPlan[checkerMethods.size()];
+			for (int c = 0; c < checkers.length; c++) {
+				Method checker = checkerMethods.get(c);
+				try {
+					checkers[c] = new CheckerPlan(checker, getArgSlots(checker, slots));
+				} catch (IllegalStateException ex) {
+					log.log(Level.SEVERE, ex.getMessage());
+					checkers[c] = new CheckerPlan(checker, ex);
+				}
+			}
+			theorems[t] = new TheoremPlan(satisfied.get(t), checkers);
+			covering |= theorems[t].covering;
+			if (t < 64 && ShellScopes.isDeferred(satisfied.get(t))) {
+				deferred |= 1L << t;
+			}
+
+			if (checkers.length == 0) {
+				log.log(Level.INFO, "No checks available for \"" + satisfied.get(t) + "\" in " + method
+					+ ". Make sure to prove this statically.");
+			}
+		}
+
+		this.covering = covering;
+		this.deferred = deferred;
+
+		// only capture, copy and keep the history of the variables that
+		// some checker will actually read
+		boolean[] read = new boolean[slotCount];
+		for (TheoremPlan theorem : theorems) {
+			for (CheckerPlan checker : theorem.checkers) {
+				for (int slot : checker.argSlots) {
+					read[slot] = true;
+				}
+			}
+		}
+		this.instanceCapture = instance != null && instance.link(read) ? instance : null;
+		this.returnCapture = returned != null && returned.link(read) ? returned : null;
+		List<Capture> readParams = new ArrayList<Capture>();
+		for (Capture capture : params) {
+			if (capture.link(read)) {
+				readParams.add(capture);
+			}
+		}
+		this.paramCaptures = readParams.toArray(new Capture[readParams.size()]);
+	}
+
+	/**
+	 * Finds the checkers for a theorem: those in the class with the checked
+	 * method, and those the checker index lists in other classes that can be
+	 * called for it, which are the static ones and those in its superclasses.
+	 * Either way, only public checkers are used, as with Class.getMethods().
+	 */
+	private static List<Method> findCheckers(CheckerRegistry registry, CheckerIndex index, Class<?> withinType,
+			String theorem) {
+		List<Method> local = registry.getCheckers(theorem);
+		List<Method> indexed = index.getCheckers(theorem, withinType.getClassLoader());
+		if (indexed.isEmpty()) {
+			return local;
+		}
+		List<Method> checkers = new ArrayList<Method>(local);
+		for (Method checker : indexed) {
+			if (checkers.contains(checker) || !Modifier.isPublic(checker.getModifiers())) {
+				continue;
+			}
+			if (Modifier.isStatic(checker.getModifiers()) || checker.getDeclaringClass().isAssignableFrom(withinType)) {
+				checkers.add(checker);
+			} else if (ShellDiagnostics.isDebugEnabled()) {
+				ShellDiagnostics.debug("Not using {0} to check \"{1}\", since it needs an instance of its own class",
+					checker, theorem);
+			}
+		}
+		return checkers;
+	}
+
+	/**
+	 * Gets the site for the method that the given join point is executing,
+	 * compiling its plan the first time.
+	 */
+	static ShellSite forJoinPoint(JoinPoint.StaticPart staticPart, Class<?> withinType) {
+		ShellSite site = sites.get(staticPart);
+		if (site == null) {
+			Method method = ((MethodSignature) staticPart.getSignature()).getMethod();
+			ShellSite compiled = new ShellSite(method, withinType);
+			site = sites.putIfAbsent(staticPart, compiled);
+			if (site == null) {
+				site = compiled;
+			}
+		}
+		return site;
+	}
+
+	/**
+	 * Decides which of the theorems to check on this call.
+	 *
+	 * @return a mask with bit t set if theorems[t] should be checked, which
+	 *         is 0 if nothing needs to be checked at all, e.g. because all
+	 *         the theorems are switched off or covered by a method further
+	 *         up the stack. Theorems past the 64th are always checked.
+	 */
+	long sample() {
+		long sampled = theorems.length > 64 ? -1L : 0L;
+		ShellScopes.Scope scope = null;
+		for (int t = 0; t < theorems.length && t < 64; t++) {
+			TheoremPlan theorem = theorems[t];
+			if (theorem.coveredBy != null) {
+				if (scope == null) {
+					scope = ShellScopes.current();
+				}
+				if (scope.isCovered(theorem.coveredBy)) {
+					continue;
+				}
+			}
+			if (theorem.enabled.on && theorem.sampler.sample() && !theorem.violations.isOpen()) {
+				sampled |= 1L << t;
+			}
+		}
+		return sampled;
+	}
+
+	static boolean isSampled(long sampled, int theorem) {
+		return theorem >= 64 || (sampled & (1L << theorem)) != 0;
+	}
+
+	private static int addSlot(Map<String, Integer> slots, String name) {
+		int slot = slots.size();
+		slots.put(name, slot);
+		return slot;
+	}
+
+	private static void addHistory(Map<String, Integer> slots, Capture capture, ReqVar reqVar) {
+		if (reqVar.history() > 0) {
+			capture.historySlot = addSlot(slots, reqVar.value() + "[]");
+			capture.viewSlot = addSlot(slots, reqVar.value() + "[]" + VIEW_SUFFIX);
+			capture.historyLength = reqVar.history();
+		}
+	}
+
+	private static ReqVar getReqVar(Annotation[] annotations) {
+		for (Annotation annot : annotations) {
+			if (annot instanceof ReqVar) {
+				return (ReqVar) annot;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the parameters holding the indices that the given output array
+	 *         touches, leaving out (and logging) any that aren't int parameters
+	 */
+	private int[] getTouchedParams(ReqVar array, List<Capture> params, Class<?>[] paramTypes) {
+		List<Integer> touched = new ArrayList<Integer>();
+		for (String name : array.touches()) {
+			int found = -1;
+			for (Capture capture : params) {
+				if (capture.name.equals(name) && paramTypes[capture.param] == int.class) {
+					found = capture.param;
+				}
+			}
+			if (found < 0) {
+				log.log(Level.SEVERE, "\"" + array.value() + "\" touches \"" + name + "\", but it isn't an int parameter of "
+					+ method + ", so it won't be copied");
+			} else {
+				touched.add(found);
+			}
+		}
+		int[] touches = new int[touched.size()];
+		for (int i = 0; i < touches.length; i++) {
+			touches[i] = touched.get(i);
+		}
+		return touches;
+	}
+
+	/**
+	 * Finds the field for an isInstance variable, which may be private or
+	 * declared in a superclass, and makes it readable. If there is no such
+	 * field, the method has no isInstance variable, and the checkers that
+	 * need it fail.
+	 *
+	 * The field is looked up from the class that declares the checked method,
+	 * so it is the one the method itself sees, whatever class the receiver
+	 * turns out to be.
+	 */
+	private static Field getInstanceField(Class<?> type, String name) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				// looked for by name rather than with getDeclaredField, so a
+				// field that's in a superclass isn't an exception
+				for (Field field : c.getDeclaredFields()) {
+					if (field.getName().equals(name)) {
+						field.setAccessible(true);
+						return field;
+					}
+				}
+			} catch (SecurityException ex) {
+				log.log(Level.SEVERE, "Unable to access instance field " + name + " in " + c, ex);
+				return null;
+			}
+		}
+		log.log(Level.SEVERE, "Cannot find instance field with name " + name + " in " + type);
+		return null;
+	}
+
+	/**
+	 * Finds the slot for each of the checker's parameters, making sure each
+	 * parameter has exactly one ReqVar that the checked method provides.
+	 *
+	 * @throws IllegalStateException if the checker can't be called for this method
+	 */
+	private int[] getArgSlots(Method checker, Map<String, Integer> slots) {
+		Annotation[][] paramAnnots = checker.getParameterAnnotations();
+		int[] argSlots = new int[paramAnnots.length];
+		boolean batch = checker.getAnnotation(Checks.class).batch();
+		for (int i = 0; i < paramAnnots.length; i++) {
+			if (batch && !checker.getParameterTypes()[i].isAssignableFrom(List.class)) {
+				throw new IllegalStateException("Parameter " + i + " of batch checker " + checker + " must be a List.");
+			}
+			boolean foundReqVar = false;
+			for (Annotation annot : paramAnnots[i]) {
+				if (annot instanceof ReqVar) {
+					if (foundReqVar) {
+						throw new IllegalStateException("Found multiple ReqVar annotations on parameter " + i + " for " + checker.toString());
+					}
+
+					ReqVar reqVar = (ReqVar) annot;
+					Class<?> type = checker.getParameterTypes()[i];
+					if (type == ArrayDelta.class || type == ChunkedSnapshot.class) {
+						Integer slot = slots.get(reqVar.value() + (type == ArrayDelta.class ? DELTA_SUFFIX : CHUNKS_SUFFIX));
+						if (slot == null) {
+							throw new IllegalStateException("Checker method wants the changes to \"" + reqVar.value()
+								+ "\", but it isn't the output of an isOutput array parameter of checked method " + method + ".");
+						}
+						argSlots[i] = slot.intValue();
+						foundReqVar = true;
+						continue;
+					}
+					if (type == HistoryView.class) {
+						Integer slot = slots.get(reqVar.value() + VIEW_SUFFIX);
+						if (slot == null) {
+							throw new IllegalStateException("Checker method wants a view of \"" + reqVar.value()
+								+ "\", but it isn't the history of a requirement variable in checked method " + method + ".");
+						}
+						argSlots[i] = slot.intValue();
+						foundReqVar = true;
+						continue;
+					}
+					Integer slot = slots.get(reqVar.value());
+					if (slot == null) {
+						throw new IllegalStateException("Checker method needs requirement variable \"" + reqVar.value()
+							+ "\", but no such variable in checked method " + method + ".");
+					}
+
+					argSlots[i] = slot.intValue();
+					foundReqVar = true;
+				}
+			}
+
+			if (!foundReqVar) {
+				throw new IllegalStateException("No ReqVar annotation on parameter " + i + " for " + checker.toString());
+			}
+		}
+		return argSlots;
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+}
@@ -0,0 +1,266 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Turns the checks for each theorem on and off while the program runs.
+ *
+ * Every theorem is on unless it is switched off. Switches are set with:
+ * <ul>
+ * <li>the shellac.switches system property, a comma separated list of
+ *     theorem=on or theorem=off pairs, where "on" or "off" on its own
+ *     switches every other theorem. For example, to only check sortedOrder:
+ *     -Dshellac.switches=off,sortedOrder=on</li>
+ * <li>the file named by shellac.switches.file, which has the same entries
+ *     one or more to a line, with # starting a comment. The file is read
+ *     again whenever it changes (it is looked at every
+ *     shellac.switches.poll ms, default 2000), and the entries in it are
+ *     applied on top of the current switches.</li>
+ * <li>the edu.virginia.cs.shellac:type=Switches MBean, or
+ *     {@link #setEnabled(String, boolean)}</li>
+ * </ul>
+ *
+ * A theorem that is switched off costs one volatile read per call, and when
+ * all the theorems of a method are off the shell just proceeds with the
+ * call, the same as when none of them are sampled.
+ */
+public final class ShellSwitches implements ShellSwitchesMBean {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	private static final ConcurrentMap<String, Switch> switches = new ConcurrentHashMap<String, Switch>();
+
+	private static volatile boolean defaultEnabled = true;
+
+	static {
+		configure(System.getProperty("shellac.switches"));
+		String file = System.getProperty("shellac.switches.file");
+		if (file != null) {
+			new FileWatcher(new File(file), Long.getLong("shellac.switches.poll", 2000)).start();
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new ShellSwitches(),
+				new ObjectName(ShellMetrics.DOMAIN + ":type=Switches"));
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "Unable to register the theorem switches, so they can't be changed through JMX", ex);
+		}
+	}
+
+	private ShellSwitches() {}
+
+	/**
+	 * Switches the given theorem on or off.
+	 */
+	public static void setEnabled(String theorem, boolean enabled) {
+		forTheorem(theorem).set(Boolean.valueOf(enabled));
+	}
+
+	/**
+	 * @return whether the given theorem is being checked
+	 */
+	public static boolean isEnabled(String theorem) {
+		return forTheorem(theorem).on;
+	}
+
+	/**
+	 * Forgets the switch set for the given theorem, so it follows the default.
+	 */
+	public static void reset(String theorem) {
+		forTheorem(theorem).set(null);
+	}
+
+	/**
+	 * Switches on or off every theorem that hasn't been switched on its own.
+	 */
+	public static void setDefaultEnabled(boolean enabled) {
+		defaultEnabled = enabled;
+		for (Switch s : switches.values()) {
+			s.update();
+		}
+	}
+
+	public static boolean isDefaultEnabled() {
+		return defaultEnabled;
+	}
+
+	/**
+	 * Sets the switches from a string in the same format as the
+	 * shellac.switches system property. Malformed entries are logged and
+	 * skipped.
+	 */
+	public static void configure(String spec) {
+		if (spec == null) {
+			return;
+		}
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int eq = entry.lastIndexOf('=');
+			try {
+				if (eq < 0) {
+					setDefaultEnabled(parseSwitch(entry));
+				} else if (eq == 0) {
+					log.log(Level.WARNING, "Ignoring switch \"" + entry + "\", expected theorem=on or theorem=off");
+				} else {
+					setEnabled(entry.substring(0, eq).trim(), parseSwitch(entry.substring(eq + 1).trim()));
+				}
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Ignoring switch \"" + entry + "\": " + ex.getMessage());
+			}
+		}
+	}
+
+	private static boolean parseSwitch(String value) {
+		if (value.equalsIgnoreCase("on")) {
+			return true;
+		}
+		if (value.equalsIgnoreCase("off")) {
+			return false;
+		}
+		throw new IllegalArgumentException("expected \"on\" or \"off\"");
+	}
+
+	/**
+	 * Gets the switch for the given theorem. Plans hold on to the switch, so
+	 * theorems that are switched later are still switched.
+	 */
+	static Switch forTheorem(String theorem) {
+		Switch s = switches.get(theorem);
+		if (s == null) {
+			Switch created = new Switch();
+			s = switches.putIfAbsent(theorem, created);
+			if (s == null) {
+				s = created;
+			}
+		}
+		return s;
+	}
+
+	public void enable(String theorem) {
+		setEnabled(theorem, true);
+	}
+
+	public void disable(String theorem) {
+		setEnabled(theorem, false);
+	}
+
+	public boolean isTheoremEnabled(String theorem) {
+		return isEnabled(theorem);
+	}
+
+	public void resetTheorem(String theorem) {
+		reset(theorem);
+	}
+
+	public boolean isEnabledByDefault() {
+		return isDefaultEnabled();
+	}
+
+	public void setEnabledByDefault(boolean enabled) {
+		setDefaultEnabled(enabled);
+	}
+
+	public String[] getDisabledTheorems() {
+		List<String> disabled = new ArrayList<String>();
+		for (String theorem : switches.keySet()) {
+			if (!switches.get(theorem).on) {
+				disabled.add(theorem);
+			}
+		}
+		Collections.sort(disabled);
+		return disabled.toArray(new String[disabled.size()]);
+	}
+
+	/**
+	 * Whether one theorem is on. The shells only read {@link #on}, which is
+	 * worked out whenever the theorem's switch or the default changes.
+	 */
+	static class Switch {
+		volatile boolean on = defaultEnabled;
+
+		// null to follow the default
+		private Boolean explicit;
+
+		synchronized void set(Boolean enabled) {
+			explicit = enabled;
+			update();
+		}
+
+		synchronized void update() {
+			on = explicit != null ? explicit.booleanValue() : defaultEnabled;
+		}
+	}
+
+	/**
+	 * Reads the switches file whenever it changes.
+	 */
+	private static class FileWatcher extends Thread {
+		private final File file;
+		private final long poll;
+		private long lastModified = -1;
+
+		FileWatcher(File file, long poll) {
+			super("shellac-switches");
+			this.file = file;
+			this.poll = poll;
+			setDaemon(true);
+
+			// switch the theorems before any of them are checked
+			check();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(poll);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				check();
+			}
+		}
+
+		private void check() {
+			long modified = file.lastModified();
+			if (modified == lastModified) {
+				return;
+			}
+			lastModified = modified;
+			if (modified == 0) {
+				log.log(Level.WARNING, "Switches file " + file + " doesn't exist, so it wasn't read");
+				return;
+			}
+			try {
+				BufferedReader in = new BufferedReader(new FileReader(file));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						int comment = line.indexOf('#');
+						configure(comment >= 0 ? line.substring(0, comment) : line);
+					}
+				} finally {
+					in.close();
+				}
+				log.log(Level.INFO, "Read the theorem switches from " + file);
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Unable to read the switches file " + file, ex);
+			}
+		}
+	}
+}
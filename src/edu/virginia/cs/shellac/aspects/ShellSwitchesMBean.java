@@ -0,0 +1,39 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * The theorem switches, registered as edu.virginia.cs.shellac:type=Switches.
+ *
+ * @see ShellSwitches
+ */
+public interface ShellSwitchesMBean {
+
+	/**
+	 * Starts checking the given theorem.
+	 */
+	void enable(String theorem);
+
+	/**
+	 * Stops checking the given theorem.
+	 */
+	void disable(String theorem);
+
+	boolean isTheoremEnabled(String theorem);
+
+	/**
+	 * Makes the given theorem follow the default again.
+	 */
+	void resetTheorem(String theorem);
+
+	/**
+	 * @return whether theorems that haven't been switched on their own are checked
+	 */
+	boolean isEnabledByDefault();
+
+	void setEnabledByDefault(boolean enabled);
+
+	/**
+	 * @return the theorems that are switched off, out of those that have
+	 *         been checked or switched so far
+	 */
+	String[] getDisabledTheorems();
+}
@@ -0,0 +1,125 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Method;
+
+/**
+ * A single step in running a protection shell, as reported to a
+ * {@link ShellTraceListener} when tracing is turned on.
+ */
+public class ShellTraceEvent {
+
+	public enum Kind {
+		/** the shell has been entered for a call to a checked method */
+		SHELL_ENTRY,
+		/** a checker is about to run */
+		CHECKER_START,
+		/** a checker has finished, either passing or failing */
+		CHECKER_END,
+		/** all the checkers for the call have run */
+		OUTCOME
+	}
+
+	private final Kind kind;
+	private final Method checkedMethod;
+	private final String theorem;
+	private final Method checker;
+	private final long nanoTime;
+	private final long durationNanos;
+	private final int checksRun;
+	private final Throwable failure;
+
+	ShellTraceEvent(Kind kind, Method checkedMethod, String theorem, Method checker,
+			long nanoTime, long durationNanos, int checksRun, Throwable failure) {
+		this.kind = kind;
+		this.checkedMethod = checkedMethod;
+		this.theorem = theorem;
+		this.checker = checker;
+		this.nanoTime = nanoTime;
+		this.durationNanos = durationNanos;
+		this.checksRun = checksRun;
+		this.failure = failure;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the @Satisfies method whose shell produced this event
+	 */
+	public Method getCheckedMethod() {
+		return checkedMethod;
+	}
+
+	/**
+	 * @return the theorem being checked, or null for SHELL_ENTRY and OUTCOME events
+	 */
+	public String getTheorem() {
+		return theorem;
+	}
+
+	/**
+	 * @return the checker, or null for SHELL_ENTRY and OUTCOME events
+	 */
+	public Method getChecker() {
+		return checker;
+	}
+
+	/**
+	 * @return System.nanoTime() when the event happened
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * @return for CHECKER_END, how long the checker ran, and for OUTCOME,
+	 *         how long the whole shell took. Otherwise 0.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * @return for OUTCOME, the number of checkers that ran. Otherwise 0.
+	 */
+	public int getChecksRun() {
+		return checksRun;
+	}
+
+	/**
+	 * @return what the checker threw, or null if it passed. For OUTCOME, the
+	 *         first failure of any of the call's checkers.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isFailure() {
+		return failure != null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(kind).append(" method=").append(checkedMethod.getDeclaringClass().getName())
+			.append('.').append(checkedMethod.getName());
+		if (theorem != null) {
+			sb.append(" theorem=").append(theorem);
+		}
+		if (checker != null) {
+			sb.append(" checker=").append(checker.getName());
+		}
+		if (kind == Kind.CHECKER_END || kind == Kind.OUTCOME) {
+			sb.append(" nanos=").append(durationNanos);
+			sb.append(" result=").append(failure == null ? "passed" : "failed");
+		}
+		if (kind == Kind.OUTCOME) {
+			sb.append(" checks=").append(checksRun);
+		}
+		if (failure != null) {
+			sb.append(" failure=").append(failure);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,13 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * Receives the steps of each protection shell while tracing is on.
+ *
+ * Listeners are called on the thread running the checked method, so they
+ * should return quickly.
+ *
+ * @see ShellDiagnostics#setTraceListener(ShellTraceListener)
+ */
+public interface ShellTraceListener {
+	void traced(ShellTraceEvent event);
+}
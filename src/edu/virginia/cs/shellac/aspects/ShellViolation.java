@@ -0,0 +1,61 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Method;
+
+/**
+ * A checker that failed: the theorem it checks was not satisfied by a call
+ * to a checked method.
+ */
+public class ShellViolation {
+
+	private final Method checkedMethod;
+	private final String theorem;
+	private final Method checker;
+	private final Throwable cause;
+	private final long timeMillis;
+
+	ShellViolation(Method checkedMethod, String theorem, Method checker, Throwable cause) {
+		this.checkedMethod = checkedMethod;
+		this.theorem = theorem;
+		this.checker = checker;
+		this.cause = cause;
+		this.timeMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the @Satisfies method that did not satisfy the theorem
+	 */
+	public Method getCheckedMethod() {
+		return checkedMethod;
+	}
+
+	public String getTheorem() {
+		return theorem;
+	}
+
+	/**
+	 * @return the @Checks method that failed
+	 */
+	public Method getChecker() {
+		return checker;
+	}
+
+	/**
+	 * @return what the checker threw
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+
+	/**
+	 * @return when the violation was found, as System.currentTimeMillis()
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "\"" + theorem + "\" violated by " + checkedMethod + ": " + checker.getName() + " threw " + cause;
+	}
+}
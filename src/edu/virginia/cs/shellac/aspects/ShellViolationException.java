@@ -0,0 +1,21 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * Thrown to the caller of a checked method when one of its checkers fails
+ * and the theorem's policy is {@link ShellViolations.Policy#THROW}.
+ */
+public class ShellViolationException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient ShellViolation violation;
+
+	ShellViolationException(ShellViolation violation) {
+		super(violation.toString(), violation.getCause());
+		this.violation = violation;
+	}
+
+	public ShellViolation getViolation() {
+		return violation;
+	}
+}
@@ -0,0 +1,10 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * Told about each checker that fails, once it has been recorded.
+ *
+ * @see ShellViolations#setListener(ShellViolationListener)
+ */
+public interface ShellViolationListener {
+	void violated(ShellViolation violation);
+}
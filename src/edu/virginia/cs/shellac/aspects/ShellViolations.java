@@ -0,0 +1,395 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides what happens when a checker fails, per theorem.
+ *
+ * Each theorem has a {@link Policy}. Apart from {@link Policy#EXIT}, every
+ * violation is recorded: it is put on a bounded queue without locking or
+ * blocking, and a background thread hands the queued violations in batches
+ * to the {@link ShellViolationListener} (by default, one that logs them).
+ * If the queue is full the violation is only counted, in
+ * {@link #getDropped()}, so a flood of violations never slows down the
+ * checked methods.
+ *
+ * Policies are configured with system properties:
+ * <ul>
+ * <li>shellac.violations is a comma separated list of theorem=policy pairs,
+ *     and a policy on its own sets the default policy for every other
+ *     theorem. For example: -Dshellac.violations=record,sortedOrder=throw</li>
+ * <li>shellac.violations.queue is how many violations can be waiting to be
+ *     reported (default: 1024)</li>
+ * <li>shellac.violations.batch is the most violations reported at once
+ *     (default: 64)</li>
+ * <li>shellac.violations.breaker is how many violations in a row trip a
+ *     theorem's circuit breaker (default: 5)</li>
+ * <li>shellac.violations.cooldown is how long, in milliseconds, a tripped
+ *     theorem goes unchecked (default: 30000)</li>
+ * </ul>
+ */
+public final class ShellViolations {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	/**
+	 * What to do when a theorem's checker fails.
+	 */
+	public enum Policy {
+		/** log the failure and exit, which is what the shells have always done */
+		EXIT,
+		/**
+		 * record the failure and throw a {@link ShellViolationException} to
+		 * the caller. Checks run in async mode can't throw to the caller, so
+		 * their failures are only recorded.
+		 */
+		THROW,
+		/** record the failure, and let the program carry on */
+		RECORD,
+		/**
+		 * record the failure, and stop checking the theorem for a while
+		 * once it has failed too many times in a row
+		 */
+		CIRCUIT_BREAKER
+	}
+
+	private static final int breakerThreshold = Integer.getInteger("shellac.violations.breaker", 5);
+
+	private static final long breakerCooldown = Long.getLong("shellac.violations.cooldown", 30000);
+
+	private static final int batchSize = Integer.getInteger("shellac.violations.batch", 64);
+
+	private static final BoundedQueue<ShellViolation> queue =
+		new BoundedQueue<ShellViolation>(Integer.getInteger("shellac.violations.queue", 1024));
+
+	private static final AtomicLong recorded = new AtomicLong();
+
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final ConcurrentMap<String, Handler> handlers = new ConcurrentHashMap<String, Handler>();
+
+	private static volatile Policy defaultPolicy = Policy.EXIT;
+
+	private static volatile ShellViolationListener listener = new ShellViolationListener() {
+		public void violated(ShellViolation violation) {
+			log.log(Level.SEVERE, "Check failed: " + violation, violation.getCause());
+		}
+	};
+
+	static {
+		configure(System.getProperty("shellac.violations"));
+	}
+
+	private ShellViolations() {}
+
+	/**
+	 * Sets the policy for the given theorem, and closes its circuit breaker.
+	 *
+	 * @param policy the policy, or null to use the default policy
+	 */
+	public static void setPolicy(String theorem, Policy policy) {
+		Handler handler = forTheorem(theorem);
+		handler.policy = policy;
+		handler.close();
+	}
+
+	/**
+	 * @return the policy for the given theorem
+	 */
+	public static Policy getPolicy(String theorem) {
+		return forTheorem(theorem).getPolicy();
+	}
+
+	/**
+	 * Sets the policy for theorems that haven't been given one of their own.
+	 */
+	public static void setDefaultPolicy(Policy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("default violation policy cannot be null");
+		}
+		defaultPolicy = policy;
+	}
+
+	public static Policy getDefaultPolicy() {
+		return defaultPolicy;
+	}
+
+	/**
+	 * Sets the policies from a string in the same format as the
+	 * shellac.violations system property. Malformed entries are logged and
+	 * skipped.
+	 */
+	public static void configure(String spec) {
+		if (spec == null) {
+			return;
+		}
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int eq = entry.lastIndexOf('=');
+			try {
+				if (eq < 0) {
+					setDefaultPolicy(parsePolicy(entry));
+				} else if (eq == 0) {
+					log.log(Level.WARNING, "Ignoring violation policy \"" + entry + "\", expected theorem=policy");
+				} else {
+					setPolicy(entry.substring(0, eq).trim(), parsePolicy(entry.substring(eq + 1).trim()));
+				}
+			} catch (IllegalArgumentException ex) {
+				log.log(Level.WARNING, "Ignoring violation policy \"" + entry + "\": unknown policy");
+			}
+		}
+	}
+
+	private static Policy parsePolicy(String policy) {
+		return Policy.valueOf(policy.toUpperCase().replace('-', '_'));
+	}
+
+	/**
+	 * Sets who is told about recorded violations. The listener is called on
+	 * the reporting thread, one violation at a time.
+	 */
+	public static void setListener(ShellViolationListener violationListener) {
+		if (violationListener == null) {
+			throw new IllegalArgumentException("violation listener cannot be null");
+		}
+		listener = violationListener;
+	}
+
+	public static ShellViolationListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return how many violations have been recorded, including dropped ones
+	 */
+	public static long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return how many recorded violations were never reported because the
+	 *         queue was full
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return roughly how many violations are waiting to be reported
+	 */
+	public static int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * @return whether the given theorem's circuit breaker has tripped, so it
+	 *         isn't being checked
+	 */
+	public static boolean isTripped(String theorem) {
+		return forTheorem(theorem).isOpen();
+	}
+
+	/**
+	 * Reports all the waiting violations on the calling thread.
+	 */
+	public static void flush() {
+		ShellViolation violation;
+		while ((violation = queue.poll()) != null) {
+			report(violation);
+		}
+	}
+
+	/**
+	 * Gets the handler for the given theorem. Plans hold on to the handler,
+	 * so policies that are changed later still take effect.
+	 */
+	static Handler forTheorem(String theorem) {
+		Handler handler = handlers.get(theorem);
+		if (handler == null) {
+			Handler created = new Handler(theorem);
+			handler = handlers.putIfAbsent(theorem, created);
+			if (handler == null) {
+				handler = created;
+			}
+		}
+		return handler;
+	}
+
+	/**
+	 * Handles a failed check as the theorem's policy says.
+	 *
+	 * @param canThrow whether the checks are running in the checked method,
+	 *        so a violation can be thrown to its caller
+	 * @throws ShellViolationException if the policy is THROW and canThrow is true
+	 */
+	static void violated(ShellViolation violation, Handler handler, boolean canThrow) {
+		Policy policy = handler.getPolicy();
+		if (policy == Policy.EXIT) {
+			flush();
+			log.log(Level.SEVERE, "Check failed!", violation.getCause());
+			System.exit(0);
+			return;
+		}
+
+		record(violation);
+		if (policy == Policy.THROW && canThrow) {
+			throw new ShellViolationException(violation);
+		} else if (policy == Policy.CIRCUIT_BREAKER) {
+			handler.failed();
+		}
+	}
+
+	private static void record(ShellViolation violation) {
+		recorded.incrementAndGet();
+		if (queue.offer(violation)) {
+			Sink.ensureStarted();
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static void report(ShellViolation violation) {
+		try {
+			listener.violated(violation);
+		} catch (Throwable t) {
+			log.log(Level.WARNING, "Violation listener failed while reporting " + violation, t);
+		}
+	}
+
+	/**
+	 * How one theorem's violations are handled, including the state of its
+	 * circuit breaker.
+	 */
+	static class Handler {
+		final String theorem;
+
+		// null to use the default policy
+		volatile Policy policy;
+
+		// violations in a row, and when a tripped breaker closes again (0 if it isn't tripped)
+		private final AtomicInteger failures = new AtomicInteger();
+		private volatile long openUntil;
+
+		Handler(String theorem) {
+			this.theorem = theorem;
+		}
+
+		Policy getPolicy() {
+			Policy p = policy;
+			return p != null ? p : defaultPolicy;
+		}
+
+		/**
+		 * @return whether the breaker is tripped, so the theorem shouldn't be checked
+		 */
+		boolean isOpen() {
+			long until = openUntil;
+			if (until == 0) {
+				return false;
+			}
+			if (System.currentTimeMillis() < until) {
+				return true;
+			}
+
+			// the cooldown is over, so check again, but trip on the next failure
+			openUntil = 0;
+			failures.set(breakerThreshold - 1);
+			log.log(Level.INFO, "Checking \"" + theorem + "\" again");
+			return false;
+		}
+
+		/**
+		 * Called when the theorem's checkers all pass, if it has a circuit breaker.
+		 */
+		void passed() {
+			if (failures.get() != 0) {
+				failures.set(0);
+			}
+		}
+
+		void failed() {
+			if (failures.incrementAndGet() >= breakerThreshold && openUntil == 0) {
+				openUntil = System.currentTimeMillis() + breakerCooldown;
+				log.log(Level.WARNING, "\"" + theorem + "\" failed " + breakerThreshold + " times in a row, so it won't be "
+					+ "checked for the next " + breakerCooldown + " ms");
+			}
+		}
+
+		void close() {
+			failures.set(0);
+			openUntil = 0;
+		}
+	}
+
+	/**
+	 * The thread that reports the queued violations. It is only running
+	 * while there are violations to report, and stops once the queue has
+	 * been empty for a little while, so the program can exit; since it
+	 * isn't a daemon, violations recorded just before the program exits
+	 * are still reported.
+	 */
+	private static class Sink extends Thread {
+		private static final AtomicInteger running = new AtomicInteger();
+
+		// how long to wait when there is nothing to report, and how long to
+		// keep waiting before stopping
+		private static final long MIN_IDLE = TimeUnit.MICROSECONDS.toNanos(100);
+		private static final long MAX_IDLE = TimeUnit.MILLISECONDS.toNanos(20);
+
+		private Sink() {
+			super("shellac-violations");
+		}
+
+		/**
+		 * Starts the thread, if it isn't already running.
+		 */
+		static void ensureStarted() {
+			if (running.get() == 0 && running.compareAndSet(0, 1)) {
+				new Sink().start();
+			}
+		}
+
+		@Override
+		public void run() {
+			List<ShellViolation> batch = new ArrayList<ShellViolation>(batchSize);
+			long idle = MIN_IDLE;
+			while (true) {
+				ShellViolation violation;
+				while (batch.size() < batchSize && (violation = queue.poll()) != null) {
+					batch.add(violation);
+				}
+				if (!batch.isEmpty()) {
+					for (int i = 0; i < batch.size(); i++) {
+						report(batch.get(i));
+					}
+					batch.clear();
+					idle = MIN_IDLE;
+				} else if (idle < MAX_IDLE) {
+					LockSupport.parkNanos(idle);
+					idle *= 2;
+				} else {
+					running.set(0);
+
+					// a violation may have been queued after we last looked,
+					// by a thread that saw we were still running
+					if (queue.size() == 0 || !running.compareAndSet(0, 1)) {
+						return;
+					}
+					idle = MIN_IDLE;
+				}
+			}
+		}
+	}
+}
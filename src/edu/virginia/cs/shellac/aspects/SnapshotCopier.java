@@ -0,0 +1,18 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * Makes the copies of requirement variables that the checkers compare
+ * against, such as the value of an isOutput variable from before the call.
+ *
+ * Copiers only have to be registered for classes that have no copy
+ * constructor, or whose copy constructor is too slow. See
+ * {@link SnapshotCopiers#register(Class, SnapshotCopier)}.
+ */
+public interface SnapshotCopier<T> {
+
+	/**
+	 * @param value the value to copy, which is never null
+	 * @return a copy of the value that will not change when the value does
+	 */
+	T copy(T value);
+}
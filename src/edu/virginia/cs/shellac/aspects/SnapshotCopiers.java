@@ -0,0 +1,213 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the {@link SnapshotCopier} for each class of value the shells copy.
+ *
+ * A class's copier is worked out the first time a value of that class is
+ * copied, and then reused. In order, the copier is:
+ * <ol>
+ * <li>one registered for the class, or the nearest superclass or interface
+ *     it has that one was registered for</li>
+ * <li>for primitive arrays, a single block copy of the array</li>
+ * <li>for known immutable classes (String, the boxed primitives, enums like
+ *     tokeneer's StatusT, BigInteger and BigDecimal) no copy at all</li>
+ * <li>for other arrays, a new array with a copy of each element</li>
+ * <li>otherwise, the class's copy constructor</li>
+ * </ol>
+ * A value that can't be copied is logged and shared with the checkers as
+ * it is.
+ */
+public final class SnapshotCopiers {
+
+	private static Logger log = Logger.getLogger(ProtectionShellAspect.class.getName());
+
+	private static final ConcurrentMap<Class<?>, SnapshotCopier<?>> registered =
+		new ConcurrentHashMap<Class<?>, SnapshotCopier<?>>();
+
+	private static final ConcurrentMap<Class<?>, SnapshotCopier<Object>> resolved =
+		new ConcurrentHashMap<Class<?>, SnapshotCopier<Object>>();
+
+	private static final Set<Class<?>> immutables = new HashSet<Class<?>>();
+
+	static {
+		immutables.add(String.class);
+		immutables.add(Boolean.class);
+		immutables.add(Byte.class);
+		immutables.add(Character.class);
+		immutables.add(Short.class);
+		immutables.add(Integer.class);
+		immutables.add(Long.class);
+		immutables.add(Float.class);
+		immutables.add(Double.class);
+		immutables.add(BigInteger.class);
+		immutables.add(BigDecimal.class);
+		immutables.add(Class.class);
+	}
+
+	private SnapshotCopiers() {}
+
+	/**
+	 * Uses the given copier for values of the given class, and its subclasses
+	 * unless they have copiers of their own.
+	 */
+	public static <T> void register(Class<T> type, SnapshotCopier<? super T> copier) {
+		registered.put(type, copier);
+
+		// anything already resolved may have been resolved to something else
+		resolved.clear();
+	}
+
+	/**
+	 * Says that values of the given class never change, so they don't need
+	 * to be copied.
+	 */
+	public static void registerImmutable(Class<?> type) {
+		register(type, IDENTITY);
+	}
+
+	/**
+	 * @return a copy of the given value, or the value itself if it is null
+	 *         or immutable
+	 */
+	public static Object copy(Object value) {
+		if (value == null) {
+			return null;
+		}
+		return forClass(value.getClass()).copy(value);
+	}
+
+	/**
+	 * Gets the copier for values of the given class, working it out if this
+	 * is the first time it has been asked for.
+	 */
+	static SnapshotCopier<Object> forClass(Class<?> type) {
+		SnapshotCopier<Object> copier = resolved.get(type);
+		if (copier == null) {
+			copier = resolve(type);
+			resolved.put(type, copier);
+		}
+		return copier;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SnapshotCopier<Object> resolve(Class<?> type) {
+		SnapshotCopier<?> user = findRegistered(type);
+		if (user != null) {
+			return (SnapshotCopier<Object>) user;
+		}
+
+		if (type.isArray()) {
+			Class<?> component = type.getComponentType();
+			if (component.isPrimitive()) {
+				return PRIMITIVE_ARRAY;
+			} else if (isImmutable(component)) {
+				// the elements can be shared, so copying the array itself is enough
+				return REFERENCE_ARRAY;
+			} else {
+				return DEEP_ARRAY;
+			}
+		}
+
+		if (isImmutable(type)) {
+			return IDENTITY;
+		}
+
+		try {
+			Constructor<?> constructor = type.getConstructor(type);
+			constructor.setAccessible(true);
+			return new CopyConstructorCopier(constructor);
+		} catch (SecurityException e) {
+			log.log(Level.SEVERE, "Unable to get constructor of class " + type
+				+ ", so its values will not be copied and checks may see them changed", e);
+		} catch (NoSuchMethodException e) {
+			log.log(Level.SEVERE, type + " must have a copy constructor, or a SnapshotCopier registered "
+				+ "with SnapshotCopiers.register(), in order to use it! Its values will not be copied, so checks "
+				+ "may see them changed", e);
+		}
+		return IDENTITY;
+	}
+
+	private static SnapshotCopier<?> findRegistered(Class<?> type) {
+		if (registered.isEmpty()) {
+			return null;
+		}
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			SnapshotCopier<?> copier = registered.get(c);
+			if (copier != null) {
+				return copier;
+			}
+			for (Class<?> iface : c.getInterfaces()) {
+				copier = registered.get(iface);
+				if (copier != null) {
+					return copier;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isImmutable(Class<?> type) {
+		return type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum())
+			|| immutables.contains(type);
+	}
+
+	private static final SnapshotCopier<Object> IDENTITY = new SnapshotCopier<Object>() {
+		public Object copy(Object value) {
+			return value;
+		}
+	};
+
+	private static final SnapshotCopier<Object> PRIMITIVE_ARRAY = new SnapshotCopier<Object>() {
+		public Object copy(Object value) {
+			int length = Array.getLength(value);
+			Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+			System.arraycopy(value, 0, copy, 0, length);
+			return copy;
+		}
+	};
+
+	private static final SnapshotCopier<Object> REFERENCE_ARRAY = new SnapshotCopier<Object>() {
+		public Object copy(Object value) {
+			return ((Object[]) value).clone();
+		}
+	};
+
+	private static final SnapshotCopier<Object> DEEP_ARRAY = new SnapshotCopier<Object>() {
+		public Object copy(Object value) {
+			Object[] original = (Object[]) value;
+			Object[] copy = (Object[]) Array.newInstance(value.getClass().getComponentType(), original.length);
+			for (int i = 0; i < original.length; i++) {
+				copy[i] = SnapshotCopiers.copy(original[i]);
+			}
+			return copy;
+		}
+	};
+
+	private static class CopyConstructorCopier implements SnapshotCopier<Object> {
+		private final Constructor<?> constructor;
+
+		CopyConstructorCopier(Constructor<?> constructor) {
+			this.constructor = constructor;
+		}
+
+		public Object copy(Object value) {
+			try {
+				return constructor.newInstance(value);
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Unable to copy a " + value.getClass() + ", so checks will see the original", e);
+				return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one value.
+ *
+ * The count is split over several cells, each on its own cache line, and a
+ * thread always adds to the cell its id hashes to. Reading the count adds
+ * up the cells, so it is slower than adding to it and may miss additions
+ * that are still going on.
+ */
+class StripedCounter {
+
+	// longs per cache line, so each cell gets a line of its own
+	private static final int PADDING = 8;
+
+	private static final int STRIPES;
+
+	static {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long amount) {
+		cells.getAndAdd(cell(), amount);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+		return (hash & (STRIPES - 1)) * PADDING;
+	}
+}
@@ -0,0 +1,103 @@
+package edu.virginia.cs.shellac.aspects;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters and checker times for one theorem, shared by every method
+ * that satisfies it.
+ */
+class TheoremMetrics implements TheoremMetricsMBean {
+
+	private final String theorem;
+
+	final StripedCounter checked = new StripedCounter();
+	final StripedCounter checkerRuns = new StripedCounter();
+	final StripedCounter failures = new StripedCounter();
+	final StripedCounter unchecked = new StripedCounter();
+
+	// the time all of the theorem's checkers took for one call
+	final LatencyHistogram checkerTime = new LatencyHistogram();
+
+	private final ConcurrentMap<Method, LatencyHistogram> checkers = new ConcurrentHashMap<Method, LatencyHistogram>();
+
+	TheoremMetrics(String theorem) {
+		this.theorem = theorem;
+	}
+
+	/**
+	 * Gets the histogram for the time one of the theorem's checkers takes.
+	 */
+	LatencyHistogram forChecker(Method checker) {
+		LatencyHistogram time = checkers.get(checker);
+		if (time == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			time = checkers.putIfAbsent(checker, created);
+			if (time == null) {
+				time = created;
+			}
+		}
+		return time;
+	}
+
+	public String getTheorem() {
+		return theorem;
+	}
+
+	public long getChecked() {
+		return checked.sum();
+	}
+
+	public long getCheckerRuns() {
+		return checkerRuns.sum();
+	}
+
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	public long getUnchecked() {
+		return unchecked.sum();
+	}
+
+	public long getTotalCheckerNanos() {
+		return checkerTime.getTotalNanos();
+	}
+
+	public double getCheckerMeanNanos() {
+		return checkerTime.getMeanNanos();
+	}
+
+	public long getCheckerP50Nanos() {
+		return checkerTime.getPercentileNanos(0.5);
+	}
+
+	public long getCheckerP99Nanos() {
+		return checkerTime.getPercentileNanos(0.99);
+	}
+
+	public int getSamplingInterval() {
+		return ShellSampling.getRate(theorem);
+	}
+
+	public String[] getCheckers() {
+		String[] lines = new String[checkers.size()];
+		int i = 0;
+		for (Map.Entry<Method, LatencyHistogram> entry : checkers.entrySet()) {
+			if (i == lines.length) {
+				break;
+			}
+			lines[i++] = entry.getKey().getDeclaringClass().getName() + "." + entry.getKey().getName()
+				+ ": " + entry.getValue();
+		}
+		return lines;
+	}
+
+	@Override
+	public String toString() {
+		return "\"" + theorem + "\": checked " + getChecked() + " times, " + getFailures() + " failures, checkers "
+			+ checkerTime;
+	}
+}
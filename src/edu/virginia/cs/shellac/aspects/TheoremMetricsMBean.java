@@ -0,0 +1,48 @@
+package edu.virginia.cs.shellac.aspects;
+
+/**
+ * The metrics for one theorem, registered as
+ * edu.virginia.cs.shellac:type=Theorem,name="theorem". Times are in
+ * nanoseconds, and the checker times for a call are added up over all of
+ * the theorem's checkers.
+ *
+ * @see ShellMetrics
+ */
+public interface TheoremMetricsMBean {
+
+	String getTheorem();
+
+	/**
+	 * @return how many calls the theorem has been checked for
+	 */
+	long getChecked();
+
+	long getCheckerRuns();
+
+	long getFailures();
+
+	/**
+	 * @return how many calls the theorem would have been checked for, but
+	 *         had no checkers
+	 */
+	long getUnchecked();
+
+	long getTotalCheckerNanos();
+
+	double getCheckerMeanNanos();
+
+	long getCheckerP50Nanos();
+
+	long getCheckerP99Nanos();
+
+	/**
+	 * @return how often the theorem is checked, as one out of every so many
+	 *         calls, which the governor may change
+	 */
+	int getSamplingInterval();
+
+	/**
+	 * @return a line for each of the theorem's checkers, with its times
+	 */
+	String[] getCheckers();
+}
@@ -1,5 +1,7 @@
 package edu.virginia.cs.shellac.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -7,10 +9,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.WorkspaceJob;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jdt.core.compiler.ReconcileContext;
 import org.eclipse.jdt.core.dom.ASTNode;
@@ -24,6 +36,7 @@ import org.eclipse.jdt.core.dom.ForStatement;
 import org.eclipse.jdt.core.dom.IExtendedModifier;
 import org.eclipse.jdt.core.dom.IMemberValuePairBinding;
 import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
 import org.eclipse.jdt.core.dom.IfStatement;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 import org.eclipse.jdt.core.dom.MethodInvocation;
@@ -31,6 +44,8 @@ import org.eclipse.jdt.core.dom.SwitchCase;
 import org.eclipse.jdt.core.dom.TypeDeclaration;
 import org.eclipse.jdt.core.dom.WhileStatement;
 
+import edu.virginia.cs.shellac.aspects.ShellProofs;
+
 /**
  * This represents all of the knowledge we have about different annotated
  * classes, methods, parameters, and fields. We also keep information about
@@ -61,6 +76,14 @@ public class KnowledgeBase {
 	// clear out old proofs that may have changed (or been marked as not completed)
 	private Map<String, ArrayList<String>> completedProofsByUnit = new HashMap<String, ArrayList<String>>();
 	
+	// keep track of which requirements each unit's methods have had all their
+	// proofs completed for, in the form the runtime reads from ShellProofs.MANIFEST
+	private Map<String, Set<String>> provenRequirementsByUnit = new HashMap<String, Set<String>>();
+	
+	// the proven requirements that were last exported, so the manifest is only
+	// written when they change
+	private Set<String> exportedRequirements = null;
+	
 	private static KnowledgeBase instance = null;
 	private KnowledgeBase() {}
 	
@@ -117,7 +140,7 @@ public class KnowledgeBase {
 			
 			// update the completed proofs for this context
 			updateCompletedProofs(unit);
-			
+			provenRequirementsByUnit.put(unit.getJavaElement().getElementName(), new HashSet<String>());
 
 			processContext(unit);
 			
@@ -125,6 +148,8 @@ public class KnowledgeBase {
 			// builds up the KB, so that the second run can more accurately
 			// report errors
 			processContext(unit);
+			
+			exportProvenRequirements(context.getWorkingCopy().getJavaProject());
 		} catch (JavaModelException e) {
 			e.printStackTrace();
 		}
@@ -158,7 +183,15 @@ public class KnowledgeBase {
 	}
 	
 	// TODO: When I save the file, the completed tasks get wiped away :(
-	private void addProof(CompilationUnit unit, ASTNode node, String msg) {
+	/**
+	 * Adds a proof task for the user to mark as completed. A proof is required
+	 * for a requirement that has no dynamic checker, and is an error until it
+	 * is completed; for one that has a checker, it is optional, and completing
+	 * it lets the protection shells skip the checker.
+	 * 
+	 * @return whether the user has marked the proof as completed
+	 */
+	private boolean addProof(CompilationUnit unit, ASTNode node, String msg, boolean required) {
 		// has the user marked this proof as completed?
 		boolean isDone = completedProofs.contains(msg);
 		
@@ -168,14 +201,113 @@ public class KnowledgeBase {
 			marker.setAttribute(IMarker.CHAR_START, node.getStartPosition());
 			marker.setAttribute(IMarker.CHAR_END, node.getStartPosition() + node.getLength());
 			marker.setAttribute(IMarker.DONE, isDone);
-			marker.setAttribute(IMarker.PRIORITY, IMarker.PRIORITY_HIGH);
+			marker.setAttribute(IMarker.PRIORITY, required ? IMarker.PRIORITY_HIGH : IMarker.PRIORITY_NORMAL);
 		} catch (CoreException e) {
 			e.printStackTrace();
 		}
 		
-		if (!isDone) {
+		if (!isDone && required) {
 			addError(unit, node, "One or more proofs need to be completed, or a dynamic checker must be added.");
 		}
+		return isDone;
+	}
+	
+	/**
+	 * Records that all of the proofs of a requirement have been completed
+	 * for the given method, so that the protection shells can skip it.
+	 */
+	private void addProvenRequirement(CompilationUnit unit, MethodDeclaration node, String req) {
+		IMethodBinding binding = node.resolveBinding();
+		if (binding == null) {
+			return;
+		}
+		ITypeBinding type = binding.getDeclaringClass();
+		if (type.getBinaryName() == null) {
+			return;
+		}
+		Set<String> proven = provenRequirementsByUnit.get(unit.getJavaElement().getElementName());
+		if (proven != null) {
+			proven.add(ShellProofs.key(type.getBinaryName(), signature(binding), req));
+		}
+	}
+	
+	/**
+	 * @return the method's name and erased parameter types, in the same form
+	 *         as CheckerInvokers.signature gives for the runtime Method
+	 */
+	private static String signature(IMethodBinding binding) {
+		StringBuilder signature = new StringBuilder(binding.getName()).append('(');
+		ITypeBinding[] types = binding.getParameterTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) {
+				signature.append(',');
+			}
+			signature.append(typeName(types[i].getErasure()));
+		}
+		return signature.append(')').toString();
+	}
+	
+	private static String typeName(ITypeBinding type) {
+		if (type.isArray()) {
+			return typeName(type.getComponentType()) + "[]";
+		}
+		// the binary name of a primitive is its descriptor, like "I"
+		return type.isPrimitive() ? type.getName() : type.getBinaryName();
+	}
+	
+	/**
+	 * Writes the requirements that have been proven to ShellProofs.MANIFEST in
+	 * the project's output folder, so that they are on the classpath of the
+	 * built program and the protection shells don't check them.
+	 * 
+	 * The manifest is written from a job, since the workspace can't be changed
+	 * while reconciling, and only when the proven requirements have changed or
+	 * the manifest is gone, as it is after a clean build.
+	 */
+	public void exportProvenRequirements(final IJavaProject project) throws JavaModelException {
+		final Set<String> proven = new TreeSet<String>();
+		for (Set<String> unitProven : provenRequirementsByUnit.values()) {
+			proven.addAll(unitProven);
+		}
+		final IFile file = project.getProject().getWorkspace().getRoot()
+			.getFolder(project.getOutputLocation()).getFile(new Path(ShellProofs.MANIFEST));
+		if (proven.equals(exportedRequirements) && file.exists()) {
+			return;
+		}
+		exportedRequirements = proven;
+		
+		WorkspaceJob job = new WorkspaceJob("Exporting proven requirements") {
+			@Override
+			public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+				StringBuilder manifest = new StringBuilder("# requirements whose proofs have been completed\n");
+				for (String req : proven) {
+					manifest.append(req).append('\n');
+				}
+				ByteArrayInputStream contents;
+				try {
+					contents = new ByteArrayInputStream(manifest.toString().getBytes("UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+				
+				createFolder(file.getParent(), monitor);
+				if (file.exists()) {
+					file.setContents(contents, true, false, monitor);
+				} else {
+					file.create(contents, true, monitor);
+				}
+				return Status.OK_STATUS;
+			}
+		};
+		job.setRule(project.getProject());
+		job.schedule();
+	}
+	
+	private void createFolder(IContainer container, IProgressMonitor monitor) throws CoreException {
+		if (container instanceof IFolder && !container.exists()) {
+			createFolder(container.getParent(), monitor);
+			((IFolder) container).create(true, true, monitor);
+		}
 	}
 	
 	private String getKeyName(MethodDeclaration node) {
@@ -306,7 +438,13 @@ public class KnowledgeBase {
 	public class KnowledgeBaseUpdatingASTVisitor extends ASTVisitor {
 		String[] unprovenReqs = {};
 		
-		// are we currently analyzing a method with unsatisfied requirements
+		// the requirements of the method that have dynamic checkers, which
+		// can be proven too so the checkers don't need to run, as long as
+		// the method only calls annotated methods
+		String[] checkedReqs = {};
+		boolean provable = true;
+		
+		// are we currently analyzing a method with unsatisfied or checked requirements
 		boolean inSatisfiesMethod = false;
 		
 		CompilationUnit unit = null;
@@ -321,7 +459,10 @@ public class KnowledgeBase {
 		@Override
 		public boolean visit(MethodDeclaration node) {
 			if (inSatisfiesMethod) {
-				addError(unit, node, "shellac cannot currently handle nested methods");
+				if (unprovenReqs.length > 0) {
+					addError(unit, node, "shellac cannot currently handle nested methods");
+				}
+				provable = false;
 				return false;
 			} else {
 				
@@ -332,18 +473,21 @@ public class KnowledgeBase {
 					// requirements
 
 					ArrayList<String> reqs = new ArrayList<String>();
+					ArrayList<String> checked = new ArrayList<String>();
 					for (String req : getRequirementsFromAnnotation(node)) {
 						if (!hasCheck(req)) {
 							reqs.add(req);
+						} else {
+							checked.add(req);
 						}
 					}
 
 					unprovenReqs = reqs.toArray(new String[reqs.size()]);
+					checkedReqs = checked.toArray(new String[checked.size()]);
+					provable = true;
 					methodCallString = "";
 					
-					// for now at least, only consider ourselves in a satisfies method
-					// if there are unchecked requirements
-					inSatisfiesMethod = (unprovenReqs.length > 0);
+					inSatisfiesMethod = (unprovenReqs.length > 0 || checkedReqs.length > 0);
 					
 					return true;
 				}
@@ -463,7 +607,11 @@ public class KnowledgeBase {
 				
 				String[] reqs = getRequirements(getKeyName(node));
 				if (reqs.length == 0) {
-					addError(unit, node, "method calls to non-annotated methods are not allowed inside annotated methods");
+					// a checked requirement just can't be proven, but an unchecked one has to be
+					if (unprovenReqs.length > 0) {
+						addError(unit, node, "method calls to non-annotated methods are not allowed inside annotated methods");
+					}
+					provable = false;
 				} else {
 					methodCallString += "; ( " + reqs[0];
 					for (int i = 1; i < reqs.length; i++) {
@@ -497,9 +645,19 @@ public class KnowledgeBase {
 
 			
 			for (String req : unprovenReqs) {
-				addProof(unit, node, methodCallString + " -> " + req);
+				if (addProof(unit, node, methodCallString + " -> " + req, true)) {
+					addProvenRequirement(unit, node, req);
+				}
+			}
+			if (provable) {
+				for (String req : checkedReqs) {
+					if (addProof(unit, node, methodCallString + " -> " + req, false)) {
+						addProvenRequirement(unit, node, req);
+					}
+				}
 			}
 			unprovenReqs = new String[] {};
+			checkedReqs = new String[] {};
 		}
 
 	}